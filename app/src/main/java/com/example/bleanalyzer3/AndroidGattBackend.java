@@ -0,0 +1,176 @@
+package com.example.bleanalyzer3;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothProfile;
+import android.bluetooth.BluetoothStatusCodes;
+import android.content.Context;
+import android.os.Build;
+import android.os.Handler;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * 基于 BluetoothGatt 的 GattBackend 实现。
+ * 系统 GATT 回调运行在 binder 线程上，这里统一 post 到 handler 再交给 GattPoller。
+ * API 33 起使用直接传值的写描述符接口和回调，旧接口只在低版本上走到。
+ */
+public class AndroidGattBackend implements GattBackend {
+    private static final UUID CCCD = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
+
+    private final Context context;
+    private final BluetoothAdapter adapter;
+    private final Handler handler;
+    private final Map<String, BluetoothGatt> connections = new HashMap<>();
+    private Callback callback;
+
+    public AndroidGattBackend(Context context, BluetoothAdapter adapter, Handler handler) {
+        this.context = context;
+        this.adapter = adapter;
+        this.handler = handler;
+    }
+
+    @Override
+    public void setCallback(Callback callback) {
+        this.callback = callback;
+    }
+
+    @Override
+    public boolean connect(String mac) {
+        if (adapter == null || !adapter.isEnabled()) {
+            return false;
+        }
+        try {
+            BluetoothDevice device = adapter.getRemoteDevice(mac);
+            BluetoothGatt gatt = device.connectGatt(context, false, gattCallback, BluetoothDevice.TRANSPORT_LE);
+            if (gatt == null) return false;
+            connections.put(mac, gatt);
+            return true;
+        } catch (Exception e) {
+            Logger.e("GATT connect failed: " + mac, e);
+            return false;
+        }
+    }
+
+    @Override
+    public void disconnect(String mac) {
+        BluetoothGatt gatt = connections.remove(mac);
+        if (gatt == null) return;
+        try {
+            gatt.disconnect();
+            gatt.close();
+        } catch (Exception e) {
+            Logger.e("GATT disconnect failed: " + mac, e);
+        }
+    }
+
+    @Override
+    public boolean read(String mac, UUID service, UUID characteristic) {
+        BluetoothGattCharacteristic c = findCharacteristic(mac, service, characteristic);
+        try {
+            return c != null && connections.get(mac).readCharacteristic(c);
+        } catch (Exception e) {
+            Logger.e("GATT read failed: " + mac, e);
+            return false;
+        }
+    }
+
+    @Override
+    public boolean enableNotifications(String mac, UUID service, UUID characteristic) {
+        BluetoothGattCharacteristic c = findCharacteristic(mac, service, characteristic);
+        if (c == null) return false;
+        try {
+            BluetoothGatt gatt = connections.get(mac);
+            if (!gatt.setCharacteristicNotification(c, true)) return false;
+            BluetoothGattDescriptor cccd = c.getDescriptor(CCCD);
+            if (cccd == null) return false;
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
+                return gatt.writeDescriptor(cccd, BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE)
+                    == BluetoothStatusCodes.SUCCESS;
+            }
+            return writeDescriptorLegacy(gatt, cccd, BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
+        } catch (Exception e) {
+            Logger.e("GATT enable notifications failed: " + mac, e);
+            return false;
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    private static boolean writeDescriptorLegacy(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, byte[] value) {
+        descriptor.setValue(value);
+        return gatt.writeDescriptor(descriptor);
+    }
+
+    private BluetoothGattCharacteristic findCharacteristic(String mac, UUID service, UUID characteristic) {
+        BluetoothGatt gatt = connections.get(mac);
+        if (gatt == null) return null;
+        BluetoothGattService s = gatt.getService(service);
+        return s == null ? null : s.getCharacteristic(characteristic);
+    }
+
+    private final BluetoothGattCallback gattCallback = new BluetoothGattCallback() {
+        @Override
+        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+            String mac = gatt.getDevice().getAddress();
+            if (status == BluetoothGatt.GATT_SUCCESS && newState == BluetoothProfile.STATE_CONNECTED) {
+                if (!gatt.discoverServices()) {
+                    handler.post(() -> callback.onDisconnected(mac));
+                }
+            } else if (newState == BluetoothProfile.STATE_DISCONNECTED || status != BluetoothGatt.GATT_SUCCESS) {
+                handler.post(() -> callback.onDisconnected(mac));
+            }
+        }
+
+        @Override
+        public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+            String mac = gatt.getDevice().getAddress();
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                handler.post(() -> callback.onReady(mac));
+            } else {
+                handler.post(() -> callback.onDisconnected(mac));
+            }
+        }
+
+        @Override
+        public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic c, byte[] value, int status) {
+            String mac = gatt.getDevice().getAddress();
+            handler.post(() -> callback.onOperationComplete(mac, c.getUuid(), status == BluetoothGatt.GATT_SUCCESS, value));
+        }
+
+        /* API 32 及以下只回调这个版本，值要从特征对象上取（可能被下一次操作覆盖，先拷贝） */
+        @Override
+        @Deprecated
+        public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic c, int status) {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) return;
+            byte[] value = c.getValue() == null ? null : c.getValue().clone();
+            onCharacteristicRead(gatt, c, value, status);
+        }
+
+        @Override
+        public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor d, int status) {
+            String mac = gatt.getDevice().getAddress();
+            UUID uuid = d.getCharacteristic().getUuid();
+            handler.post(() -> callback.onOperationComplete(mac, uuid, status == BluetoothGatt.GATT_SUCCESS, null));
+        }
+
+        @Override
+        public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic c, byte[] value) {
+            String mac = gatt.getDevice().getAddress();
+            handler.post(() -> callback.onNotification(mac, c.getUuid(), value));
+        }
+
+        @Override
+        @Deprecated
+        public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic c) {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) return;
+            byte[] value = c.getValue() == null ? null : c.getValue().clone();
+            onCharacteristicChanged(gatt, c, value);
+        }
+    };
+}
@@ -1,23 +1,57 @@
 package com.example.bleanalyzer3;
 
+import android.app.AlarmManager;
+import android.app.NotificationChannel;
+import android.app.Notification;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
 import android.app.Service;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothManager;
 import android.bluetooth.le.BluetoothLeScanner;
 import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanFilter;
 import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
+import android.content.BroadcastReceiver;
+import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Build;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.Looper;
+import android.os.PowerManager;
+import android.os.SystemClock;
+import android.text.TextUtils;
 import androidx.annotation.Nullable;
+import androidx.core.app.NotificationCompat;
+import org.json.JSONException;
+import org.json.JSONObject;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Set;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class BLEService extends Service {
+    private static final long PRESENCE_TICK_MS = 1000;
+    private static final long MAX_SCAN_WINDOW_MS = 60000;
+    private static final String ACTION_FLUSH_DEFERRED = "com.example.bleanalyzer3.FLUSH_DEFERRED";
+    private static final String RULE_CHANNEL_ID = "rules";
+    private static final int RULE_NOTIFICATION_ID = 1000;
+    private static final String SERVICE_CHANNEL_ID = "service";
+    private static final int SERVICE_NOTIFICATION_ID = 1;
+    private static final long STATUS_UPDATE_MS = 30000;
+    private static final int MAX_DEFERRED = MQTTManager.MAX_PENDING;
+    private static final int DEFERRED_CHUNK = 100;
+    
     private BluetoothAdapter bluetoothAdapter;
     private BluetoothLeScanner bluetoothLeScanner;
     private Handler handler = new Handler(Looper.getMainLooper());
@@ -27,6 +61,109 @@ public class BLEService extends Service {
     private boolean isScanning = false;
     private Runnable scanRunnable;
     private Set<String> targetMacs = new HashSet<>();
+    private DeviceTracker deviceTracker;
+    private ReadingAggregator aggregator;    // null 表示逐条上报
+    private ReadingBatcher batcher;          // null 表示每条读数单独一条消息
+    private PayloadCompressor compressor;    // null 表示批量消息不压缩
+    private RuleEngine ruleEngine;
+    private GattPoller gattPoller;           // null 表示没有配置 GATT 设备
+    private CommandChannel commandChannel;   // null 表示关闭远程命令
+    private String commandTopic;
+    
+    /* 前台服务 / 待机相关 */
+    private PowerManager powerManager;
+    private FlushWakeLock flushWakeLock;
+    private ServiceStateStore stateStore;
+    private long readingCount = 0;
+    private long publishedBase = 0;          // 重启前累计的发布条数
+    private final List<String> deferredTopics = new ArrayList<>();
+    private final List<String> deferredPayloads = new ArrayList<>();
+    private boolean deferredFlushing = false;
+    private int deferredFlushed = 0;
+    
+    /* 启动：配置加载和蓝牙初始化在线程池里并行，都完成后回到主线程搭建处理管线 */
+    private final ExecutorService startupExecutor = Executors.newFixedThreadPool(2);
+    private final AtomicInteger pendingStartupStages = new AtomicInteger(2);
+    private boolean pipelineReady = false;
+    private boolean destroyed = false;
+    
+    private final Runnable presenceRunnable = new Runnable() {
+        @Override
+        public void run() {
+            deviceTracker.tick(SystemClock.elapsedRealtime());
+            handler.postDelayed(this, PRESENCE_TICK_MS);
+        }
+    };
+    
+    private final Runnable aggregationRunnable = new Runnable() {
+        @Override
+        public void run() {
+            long hop = aggregator.getHopMs();
+            long now = System.currentTimeMillis();
+            /* handler 可能略有延迟，取最近的边界作为窗口结束时间 */
+            long windowEnd = (now + hop / 2) / hop * hop;
+            flushWithWakeLock(() -> aggregator.flush(windowEnd));
+            handler.postDelayed(this, aggregator.millisToNextBoundary(System.currentTimeMillis()));
+        }
+    };
+    
+    private final Runnable batchRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (batcher.size() > 0) {
+                flushWithWakeLock(batcher::flush);
+            }
+            handler.postDelayed(this, configManager.getBatchInterval());
+        }
+    };
+    
+    private final Runnable gattRunnable = new Runnable() {
+        @Override
+        public void run() {
+            gattPoller.tick();
+            handler.postDelayed(this, PRESENCE_TICK_MS);
+        }
+    };
+    
+    /*
+     * Doze 期间延后的消息由 AlarmManager 闹钟唤醒 CPU 集中发送（Handler 的延时按 uptime 计，CPU 休眠时不走）。
+     * 闹钟广播的 onReceive 期间系统替我们持有 wake lock，在这里接上自己的 wake lock；
+     * 退出 Doze 时立即发送，不等闹钟
+     */
+    private final BroadcastReceiver deferredFlushReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (!pipelineReady || destroyed) return;
+            if (ACTION_FLUSH_DEFERRED.equals(intent.getAction())) {
+                flushAlarmScheduled = false;
+            } else if (powerManager.isDeviceIdleMode()) {
+                return;
+            }
+            flushWakeLock.acquire();
+            try {
+                if (!deferredTopics.isEmpty() && mqttManager.isConnected()) {
+                    flushDeferred();
+                }
+            } finally {
+                flushWakeLock.release();
+            }
+            if (!deferredTopics.isEmpty() && shouldDefer()) {
+                scheduleDeferredFlush();
+            }
+        }
+    };
+    private AlarmManager alarmManager;
+    private PendingIntent flushAlarmIntent;
+    private boolean flushAlarmScheduled = false;
+    
+    private final Runnable statusRunnable = new Runnable() {
+        @Override
+        public void run() {
+            updateStatusNotification();
+            saveState();
+            handler.postDelayed(this, STATUS_UPDATE_MS);
+        }
+    };
     
     private ScanCallback scanCallback = new ScanCallback() {
         @Override
@@ -53,28 +190,249 @@ public class BLEService extends Service {
     @Override
     public void onCreate() {
         super.onCreate();
+        StartupTimer.begin();
         Logger.i("BLEService onCreate");
         
-        configManager = ConfigManager.getInstance(this);
-        mqttManager = MQTTManager.getInstance(this);
+        /* Android 8+ 用 startForegroundService 启动后必须尽快进入前台，否则服务会被杀 */
+        createNotificationChannels();
+        startForeground(SERVICE_NOTIFICATION_ID, buildStatusNotification("Starting..."));
+        
+        StartupTimer.mark("foreground");
+        
+        /* 1. 配置文件 I/O + 发起 MQTT 连接（MQTT 连接本身在 MQTTManager 的线程上重试） */
+        startupExecutor.execute(() -> {
+            configManager = ConfigManager.getInstance(this);
+            mqttManager = MQTTManager.getInstance(this);
+            StartupTimer.mark("config");
+            mqttManager.connectAsync();
+            onStartupStageDone();
+        });
         
-        /* 1. 启动 BLE 扫描（无论 MQTT 是否连上） */
-        initializeBluetooth();
+        /* 2. 蓝牙适配器初始化（不依赖配置） */
+        startupExecutor.execute(() -> {
+            initializeBluetooth();
+            StartupTimer.mark("bluetooth");
+            onStartupStageDone();
+        });
+    }
+    
+    private void onStartupStageDone() {
+        if (pendingStartupStages.decrementAndGet() == 0) {
+            handler.post(this::initializePipeline);
+        }
+    }
+    
+    /* 3. 主线程：处理管线 + 开始扫描。MQTT 未连上前解码出的读数进入 MQTTManager 的待发队列 */
+    private void initializePipeline() {
+        if (destroyed) {
+            return;
+        }
+        powerManager = (PowerManager) getSystemService(POWER_SERVICE);
+        flushWakeLock = new FlushWakeLock(this);
+        initializeTracker();
+        initializeAggregator();
+        initializeBatcher();
+        initializeRules();
+        restoreState();
+        handler.postDelayed(statusRunnable, STATUS_UPDATE_MS);
+        initializeDeferredFlush();
+        initializeGatt();
         loadTargetDevices();
-        startScanning();          // ← 先扫，MQTT后启
-    
-        /* 2. MQTT 异步连接（失败不影响 BLE） */
-        new Thread(() -> {
-            int retry = 0;
-            while (!mqttManager.isConnected() && retry < 10) {
-                Logger.i("MQTT connect attempt " + (retry + 1));
-                mqttManager.connect();
-                if (!mqttManager.isConnected()) {
-                    try { Thread.sleep(5000); } catch (InterruptedException ignored) {}
-                    retry++;
-                }
+        initializeCommands();
+        startScanning();
+        pipelineReady = true;
+        StartupTimer.mark("scan_started");
+        startupExecutor.shutdown();
+    }
+    
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        if (intent == null) {
+            Logger.w("BLEService restarted by system (START_STICKY)");
+        }
+        return START_STICKY;
+    }
+    
+    private void createNotificationChannels() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O) {
+            return;
+        }
+        NotificationManager nm = getSystemService(NotificationManager.class);
+        if (nm == null) return;
+        nm.createNotificationChannel(new NotificationChannel(
+            SERVICE_CHANNEL_ID, "Bridge status", NotificationManager.IMPORTANCE_LOW));
+        nm.createNotificationChannel(new NotificationChannel(
+            RULE_CHANNEL_ID, "Rule alerts", NotificationManager.IMPORTANCE_DEFAULT));
+    }
+    
+    private Notification buildStatusNotification(String text) {
+        PendingIntent contentIntent = PendingIntent.getActivity(this, 0,
+            new Intent(this, MainActivity.class), PendingIntent.FLAG_IMMUTABLE);
+        return new NotificationCompat.Builder(this, SERVICE_CHANNEL_ID)
+            .setSmallIcon(android.R.drawable.stat_sys_data_bluetooth)
+            .setContentTitle("BLE MQTT Bridge")
+            .setContentText(text)
+            .setContentIntent(contentIntent)
+            .setOngoing(true)
+            .setOnlyAlertOnce(true)
+            .setShowWhen(false)
+            .setPriority(NotificationCompat.PRIORITY_LOW)
+            .build();
+    }
+    
+    private void updateStatusNotification() {
+        String text = String.format(Locale.US,
+            "Readings %d · Published %d · Online %d/%d · Pending %d · WakeLock %.1fs",
+            readingCount,
+            publishedBase + mqttManager.getTotalPublished(),
+            deviceTracker.getOnlineCount(),
+            targetMacs.size(),
+            deferredTopics.size() + (batcher == null ? 0 : batcher.size()),
+            flushWakeLock.getTotalHeldMs() / 1000.0);
+        NotificationManager nm = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
+        if (nm != null) {
+            nm.notify(SERVICE_NOTIFICATION_ID, buildStatusNotification(text));
+        }
+        Logger.d("Status: " + text + ", wake lock max hold " + flushWakeLock.getMaxHeldMs()
+            + " ms over " + flushWakeLock.getAcquisitions() + " flushes");
+    }
+    
+    /* 被 START_STICKY 重启时恢复计数和未发出的读数 */
+    private void restoreState() {
+        stateStore = new ServiceStateStore(this);
+        stateStore.load();
+        readingCount = stateStore.readings;
+        publishedBase = stateStore.published;
+        flushWakeLock.restore(stateStore.wakeLockHeldMs, stateStore.wakeLockAcquisitions);
+        deferredTopics.addAll(stateStore.deferredTopics);
+        deferredPayloads.addAll(stateStore.deferredPayloads);
+        mqttManager.restorePending(stateStore.mqttPending);
+        if (batcher != null) {
+            batcher.restore(stateStore.batchReadings, stateStore.batchCount);
+        }
+        stateStore.restarts++;
+        Logger.i("Restored service state: start #" + stateStore.restarts + ", " + deferredTopics.size()
+            + " deferred messages, " + stateStore.mqttPending.size() + " queued MQTT messages, "
+            + stateStore.batchCount + " batched readings");
+        /* 已经恢复到内存里，用当前状态覆盖磁盘上的快照，避免下次重复恢复 */
+        saveState();
+    }
+    
+    private void saveState() {
+        stateStore.readings = readingCount;
+        stateStore.published = publishedBase + mqttManager.getTotalPublished();
+        stateStore.wakeLockHeldMs = flushWakeLock.getTotalHeldMs();
+        stateStore.wakeLockAcquisitions = flushWakeLock.getAcquisitions();
+        stateStore.deferredTopics.clear();
+        stateStore.deferredTopics.addAll(deferredTopics);
+        stateStore.deferredPayloads.clear();
+        stateStore.deferredPayloads.addAll(deferredPayloads);
+        stateStore.mqttPending.clear();
+        stateStore.mqttPending.addAll(mqttManager.snapshotPending());
+        stateStore.batchReadings = batcher == null ? "" : batcher.getPendingReadings();
+        stateStore.batchCount = batcher == null ? 0 : batcher.size();
+        stateStore.save();
+    }
+    
+    /*
+     * 只在 Doze 时延后：单纯灭屏时 CPU 照常运行，延后只会增加延迟。
+     * Doze 中读数先攒着，由闹钟带 wake lock 集中发送
+     */
+    private boolean shouldDefer() {
+        if (configManager.getDozeFlushInterval() <= 0 || powerManager == null) {
+            return false;
+        }
+        return powerManager.isDeviceIdleMode();
+    }
+    
+    private void initializeDeferredFlush() {
+        alarmManager = (AlarmManager) getSystemService(ALARM_SERVICE);
+        Intent intent = new Intent(ACTION_FLUSH_DEFERRED).setPackage(getPackageName());
+        flushAlarmIntent = PendingIntent.getBroadcast(this, 0, intent,
+            PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE);
+        IntentFilter filter = new IntentFilter(ACTION_FLUSH_DEFERRED);
+        filter.addAction(PowerManager.ACTION_DEVICE_IDLE_MODE_CHANGED);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
+            registerReceiver(deferredFlushReceiver, filter, Context.RECEIVER_NOT_EXPORTED);
+        } else {
+            registerReceiver(deferredFlushReceiver, filter);
+        }
+        /* 恢复出来的 deferred 消息也要有人发 */
+        if (!deferredTopics.isEmpty() && shouldDefer()) {
+            scheduleDeferredFlush();
+        }
+    }
+    
+    /*
+     * 有消息被延后时才排一次闹钟，发完不再续排。
+     * Android 12+ 没有精确闹钟权限时退化为非精确闹钟；Doze 中系统对这两种闹钟都有最小间隔限制
+     */
+    private void scheduleDeferredFlush() {
+        if (flushAlarmScheduled || alarmManager == null) return;
+        long triggerAt = SystemClock.elapsedRealtime() + configManager.getDozeFlushInterval();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S && !alarmManager.canScheduleExactAlarms()) {
+            alarmManager.setAndAllowWhileIdle(AlarmManager.ELAPSED_REALTIME_WAKEUP, triggerAt, flushAlarmIntent);
+        } else {
+            alarmManager.setExactAndAllowWhileIdle(AlarmManager.ELAPSED_REALTIME_WAKEUP, triggerAt, flushAlarmIntent);
+        }
+        flushAlarmScheduled = true;
+    }
+    
+    private void cancelDeferredFlush() {
+        if (alarmManager != null && flushAlarmScheduled) {
+            alarmManager.cancel(flushAlarmIntent);
+        }
+        flushAlarmScheduled = false;
+    }
+    
+    /* flush 只是把消息交给 MQTT 线程；wake lock 持有到 MQTT 线程把这些消息发完（或发送失败）为止 */
+    private void flushWithWakeLock(Runnable flush) {
+        flushWakeLock.acquire();
+        flush.run();
+        mqttManager.runWhenSent(() -> handler.post(flushWakeLock::release));
+    }
+    
+    /*
+     * 攒下的消息可能有几千条，同步 QoS1 发送不能放在主线程：每次按顺序交给 MQTT 线程一块，
+     * 这一块发完且仍连着才交下一块。断线或发送失败就停下，没交出去的留在 deferred 里（随 saveState 持久化）
+     */
+    private void flushDeferred() {
+        if (deferredFlushing) return;
+        deferredFlushing = true;
+        deferredFlushed = 0;
+        flushWakeLock.acquire();
+        handOffDeferred();
+    }
+    
+    private void handOffDeferred() {
+        /* 上一块发得太慢、wake lock 已经超时的话就停下，剩下的等下一次 flush */
+        boolean lockKept = flushWakeLock.renew();
+        if (!lockKept) {
+            Logger.w("Deferred flush outlived its wake lock, " + deferredTopics.size() + " messages left for the next flush");
+        }
+        if (!lockKept || deferredTopics.isEmpty() || destroyed || !mqttManager.isConnected()) {
+            deferredFlushing = false;
+            if (!destroyed) saveState();
+            flushWakeLock.release();
+            if (deferredFlushed > 0) {
+                Logger.d("Flushed " + deferredFlushed + " deferred messages, " + deferredTopics.size() + " left");
             }
-        }).start();
+            return;
+        }
+        deferredFlushed += handOffDeferredChunk();
+        /* 立即持久化：交出去的这一块现在在 MQTT 待发队列的快照里，被杀后既不会丢也不会被当成 deferred 重发 */
+        saveState();
+        mqttManager.runWhenSent(() -> handler.post(this::handOffDeferred));
+    }
+    
+    private int handOffDeferredChunk() {
+        int count = Math.min(DEFERRED_CHUNK, deferredTopics.size());
+        for (int i = 0; i < count; i++) {
+            mqttManager.publish(deferredTopics.get(i), deferredPayloads.get(i));
+        }
+        deferredTopics.subList(0, count).clear();
+        deferredPayloads.subList(0, count).clear();
+        return count;
     }
     
     private void initializeBluetooth() {
@@ -94,6 +452,124 @@ public class BLEService extends Service {
         }
     }
     
+    private void initializeTracker() {
+        deviceTracker = new DeviceTracker(
+            PRESENCE_TICK_MS,
+            configManager.getRssiSmoothing(),
+            configManager.getPresenceMissedIntervals(),
+            getPresenceMinTimeout(),
+            this::publishAvailability);
+        handler.postDelayed(presenceRunnable, PRESENCE_TICK_MS);
+    }
+    
+    /* 扫描是开 scan_interval / 停 scan_interval 交替的，超时至少要覆盖一整个停扫周期 */
+    private long getPresenceMinTimeout() {
+        return 2L * configManager.getScanInterval() + PRESENCE_TICK_MS;
+    }
+    
+    private void initializeAggregator() {
+        long window = configManager.getAggregationWindow();
+        if (window <= 0) {
+            Logger.i("Aggregation disabled, publishing raw readings");
+            return;
+        }
+        aggregator = new ReadingAggregator(window, configManager.getAggregationHop(), this::publishAggregate);
+        handler.postDelayed(aggregationRunnable, aggregator.millisToNextBoundary(System.currentTimeMillis()));
+        Logger.i("Aggregation enabled: window=" + aggregator.getWindowMs() + "ms hop=" + aggregator.getHopMs() + "ms");
+    }
+    
+    private void initializeBatcher() {
+        int batchSize = configManager.getBatchSize();
+        if (batchSize <= 0) {
+            return;
+        }
+        batcher = new ReadingBatcher(batchSize, this::publishBatch);
+        if ("deflate".equalsIgnoreCase(configManager.getPayloadCompression())) {
+            compressor = new PayloadCompressor();
+            Logger.i("Batch compression: deflate, dictionary id " + Integer.toHexString(PayloadCompressor.getDictionaryId()));
+        }
+        handler.postDelayed(batchRunnable, configManager.getBatchInterval());
+        Logger.i("Batching enabled: size=" + batchSize + " interval=" + configManager.getBatchInterval() + "ms");
+    }
+    
+    private void publishBatch(String payload, int count) {
+        try {
+            String topic = configManager.getMQTTTopicPrefix() + "/batch";
+            Logger.d("Publishing batch of " + count + " readings");
+            if (compressor != null) {
+                byte[] compressed = compressor.compress(payload);
+                Logger.d("Batch compressed " + payload.length() + " -> " + compressed.length + " bytes (total "
+                    + compressor.getBytesIn() + " -> " + compressor.getBytesOut() + ")");
+                mqttManager.publish(topic + "/deflate", compressed, false);
+            } else {
+                mqttManager.publish(topic, payload);
+            }
+        } catch (Exception e) {
+            Logger.e("Error sending batch to MQTT", e);
+        }
+    }
+    
+    private void initializeRules() {
+        ruleEngine = new RuleEngine(new RuleEngine.ActionSink() {
+            @Override
+            public void publish(String topic, String payload) {
+                mqttManager.publishUrgent(topic, payload);
+            }
+            
+            @Override
+            public void notify(String ruleName, String mac, String text) {
+                showRuleNotification(ruleName, mac, text);
+            }
+        });
+        ruleEngine.load(configManager.getRules());
+    }
+    
+    /* tag = 规则名/设备：同一规则同一设备只保留一条通知，再次触发（包括 .clear）时原地替换 */
+    private void showRuleNotification(String ruleName, String mac, String text) {
+        Logger.w("Rule " + ruleName + ": " + text);
+        try {
+            NotificationManager nm = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
+            if (nm == null) return;
+            nm.notify(ruleName + "/" + mac, RULE_NOTIFICATION_ID, new NotificationCompat.Builder(this, RULE_CHANNEL_ID)
+                .setSmallIcon(android.R.drawable.ic_dialog_alert)
+                .setContentTitle(ruleName)
+                .setContentText(text)
+                .setAutoCancel(true)
+                .build());
+        } catch (Exception e) {
+            Logger.e("Error showing rule notification", e);
+        }
+    }
+    
+    private void publishAvailability(String macAddress, boolean online) {
+        try {
+            String topic = configManager.getMQTTTopicPrefix() + "/" + macAddress.replace(":", "") + "/availability";
+            mqttManager.publish(topic, online ? "online" : "offline", true);
+        } catch (Exception e) {
+            Logger.e("Error publishing availability", e);
+        }
+    }
+    
+    private void initializeGatt() {
+        Set<String> gattMacs = new HashSet<>();
+        for (String mac : configManager.getGattMacs()) {
+            if (!mac.trim().isEmpty()) gattMacs.add(mac.trim());
+        }
+        if (gattMacs.isEmpty()) {
+            return;
+        }
+        gattPoller = new GattPoller(
+            new AndroidGattBackend(this, bluetoothAdapter, handler),
+            SystemClock::elapsedRealtime,
+            this::handleReading,
+            configManager.getGattMaxConnections(),
+            configManager.getGattPollInterval(),
+            configManager.getGattTimeout());
+        gattPoller.setDevices(gattMacs);
+        handler.post(gattRunnable);
+        Logger.i("GATT polling enabled for " + gattMacs.size() + " devices");
+    }
+    
     private void loadTargetDevices() {
         String[] macs = configManager.getDeviceMacs();
         targetMacs.clear();
@@ -102,6 +578,193 @@ public class BLEService extends Service {
         Logger.i("Target MAC list: " + targetMacs);
     }
     
+    private void initializeCommands() {
+        if (!configManager.isCommandChannelEnabled()) {
+            Logger.i("Remote command channel disabled (set command_channel=true to enable)");
+            return;
+        }
+        commandChannel = new CommandChannel(new CommandChannel.Target() {
+            @Override
+            public int addDevices(List<String> macs) {
+                return addTargetDevices(macs);
+            }
+            
+            @Override
+            public int removeDevices(List<String> macs) {
+                return removeTargetDevices(macs);
+            }
+            
+            @Override
+            public void applySettings(Map<String, String> settings) {
+                applyRemoteSettings(settings);
+            }
+            
+            @Override
+            public void fillStats(JSONObject out) throws JSONException {
+                fillRemoteStats(out);
+            }
+            
+            @Override
+            public void flush(JSONObject out) throws JSONException {
+                flushOutbox(out);
+            }
+        });
+        commandTopic = configManager.getMQTTTopicPrefix() + "/bridge/" + configManager.getMQTTClientId() + "/cmd";
+        /* 命令在 Paho 线程上到达，切到主线程与收包处理串行执行 */
+        mqttManager.setCommandListener(commandTopic, payload -> handler.post(() -> handleCommand(payload)));
+        Logger.i("Remote commands enabled on " + commandTopic);
+    }
+    
+    private void handleCommand(String payload) {
+        if (destroyed) {
+            return;
+        }
+        mqttManager.publish(commandTopic + "/response", commandChannel.handle(payload));
+    }
+    
+    private int addTargetDevices(List<String> macs) {
+        int added = 0;
+        for (String mac : macs) {
+            if (targetMacs.add(mac)) added++;
+        }
+        configManager.set("device_macs", TextUtils.join(",", targetMacs));
+        Logger.i("Target MAC list: " + targetMacs);
+        if (added > 0) restartScan();
+        return added;
+    }
+    
+    /* 移除的设备不再跟踪，在线的先发 offline，避免 Home Assistant 一直显示在线 */
+    private int removeTargetDevices(List<String> macs) {
+        int removed = 0;
+        for (String mac : macs) {
+            if (!targetMacs.remove(mac)) continue;
+            removed++;
+            if (deviceTracker.isOnline(mac)) {
+                publishAvailability(mac, false);
+            }
+            deviceTracker.remove(mac);
+            if (aggregator != null) aggregator.remove(mac);
+            ruleEngine.remove(mac);
+        }
+        configManager.set("device_macs", TextUtils.join(",", targetMacs));
+        Logger.i("Target MAC list: " + targetMacs);
+        if (removed > 0) restartScan();
+        return removed;
+    }
+    
+    /* 扫描过滤器在 startScan 时确定，目标列表变了要重新开始扫描 */
+    private void restartScan() {
+        if (isScanning) {
+            stopScan();
+            startScan();
+        }
+    }
+    
+    /*
+     * 单个参数已由 CommandChannel 校验，这里先检查参数之间的组合（抛异常时整条命令拒绝，什么都不改），
+     * 再写入 ConfigManager 并按受影响的组件逐个重新配置
+     */
+    private void applyRemoteSettings(Map<String, String> settings) {
+        long window = settings.containsKey("aggregation_window")
+            ? Long.parseLong(settings.get("aggregation_window")) : configManager.getAggregationWindow();
+        long hop = settings.containsKey("aggregation_hop")
+            ? Long.parseLong(settings.get("aggregation_hop")) : configManager.getAggregationHop();
+        if (window > 0 && !ReadingAggregator.isAligned(window, hop)) {
+            throw new IllegalArgumentException("aggregation_window " + window
+                + " is not a multiple of aggregation_hop " + hop);
+        }
+        for (Map.Entry<String, String> e : settings.entrySet()) {
+            configManager.set(e.getKey(), e.getValue());
+        }
+        if (settings.containsKey("log_level")) {
+            Logger.setLogLevel(settings.get("log_level"));
+        }
+        if (settings.containsKey("scan_interval")) {
+            /* 当前这一轮开 / 停扫描按新间隔重新计时 */
+            handler.removeCallbacks(scanRunnable);
+            handler.postDelayed(scanRunnable, configManager.getScanInterval());
+        }
+        if (settings.containsKey("scan_interval") || settings.containsKey("presence_missed_intervals")
+                || settings.containsKey("rssi_smoothing")) {
+            deviceTracker.configure(configManager.getRssiSmoothing(),
+                configManager.getPresenceMissedIntervals(), getPresenceMinTimeout());
+        }
+        if (settings.containsKey("aggregation_window") || settings.containsKey("aggregation_hop")) {
+            /* 先把当前窗口已累计的读数输出，再按新参数重建（configure 会清空累计值） */
+            handler.removeCallbacks(aggregationRunnable);
+            if (aggregator != null) {
+                aggregator.flush(System.currentTimeMillis());
+                aggregator = null;
+            }
+            initializeAggregator();
+        }
+        if (settings.containsKey("batch_size") || settings.containsKey("batch_interval")) {
+            handler.removeCallbacks(batchRunnable);
+            if (batcher != null) {
+                batcher.flush();
+                batcher = null;
+                compressor = null;
+            }
+            initializeBatcher();
+        }
+        if (settings.containsKey("doze_flush_interval")) {
+            cancelDeferredFlush();
+            if (shouldDefer() && !deferredTopics.isEmpty()) {
+                scheduleDeferredFlush();
+            } else if (!deferredTopics.isEmpty()) {
+                flushDeferred();
+            }
+        }
+        if (gattPoller != null && (settings.containsKey("gatt_max_connections")
+                || settings.containsKey("gatt_poll_interval") || settings.containsKey("gatt_timeout"))) {
+            gattPoller.configure(configManager.getGattMaxConnections(),
+                configManager.getGattPollInterval(), configManager.getGattTimeout());
+        }
+    }
+    
+    private void fillRemoteStats(JSONObject out) throws JSONException {
+        out.put("readings", readingCount);
+        out.put("published", publishedBase + mqttManager.getTotalPublished());
+        out.put("mqtt_pending", mqttManager.getPendingCount());
+        out.put("deferred", deferredTopics.size());
+        out.put("batched", batcher == null ? 0 : batcher.size());
+        out.put("devices", targetMacs.size());
+        out.put("online", deviceTracker.getOnlineCount());
+        JSONObject rssi = new JSONObject();
+        for (String mac : targetMacs) {
+            int value = deviceTracker.getSmoothedRssi(mac);
+            if (value != Integer.MIN_VALUE) rssi.put(mac, value);
+        }
+        out.put("rssi", rssi);
+        JSONObject interval = new JSONObject();
+        for (String mac : targetMacs) {
+            long value = deviceTracker.getIntervalMs(mac);
+            if (value > 0) interval.put(mac, value);
+        }
+        out.put("interval", interval);
+        out.put("scan_interval", configManager.getScanInterval());
+        out.put("aggregation_window", aggregator == null ? 0 : aggregator.getWindowMs());
+        out.put("batch_size", batcher == null ? 0 : batcher.getMaxSize());
+        out.put("rules", ruleEngine.getStats());
+        if (gattPoller != null) {
+            out.put("gatt", gattPoller.getStats());
+        }
+        if (compressor != null) {
+            out.put("compression", compressor.getBytesIn() + "->" + compressor.getBytesOut());
+        }
+        out.put("wake_lock_ms", flushWakeLock.getTotalHeldMs());
+        out.put("startup", StartupTimer.summary());
+    }
+    
+    private void flushOutbox(JSONObject out) throws JSONException {
+        out.put("batched", batcher == null ? 0 : batcher.size());
+        out.put("deferred", deferredTopics.size());
+        if (batcher != null) flushWithWakeLock(batcher::flush);
+        if (!deferredTopics.isEmpty()) flushDeferred();
+        mqttManager.flushPending();
+        out.put("mqtt_pending", mqttManager.getPendingCount());
+    }
+    
     private void startScanning() {
         if (scanRunnable == null) {
             scanRunnable = new Runnable() {
@@ -109,24 +772,55 @@ public class BLEService extends Service {
                 public void run() {
                     if (isScanning) {
                         stopScan();
+                        handler.postDelayed(this, configManager.getScanInterval());
                     } else {
                         startScan();
+                        handler.postDelayed(this, getScanWindow());
                     }
-                    handler.postDelayed(this, configManager.getScanInterval());
                 }
             };
         }
         handler.post(scanRunnable);
     }
     
+    /*
+     * 每次扫描至少开到最慢设备估计广播间隔的 1.5 倍，保证每个在线设备每轮都能收到一包；
+     * 间隔还没估计出来时按 scan_interval
+     */
+    private long getScanWindow() {
+        long interval = deviceTracker.getMaxIntervalMs();
+        return Math.max(configManager.getScanInterval(), Math.min(MAX_SCAN_WINDOW_MS, interval + interval / 2));
+    }
+    
+    /*
+     * 每个目标 MAC 一个 ScanFilter：Android 8.1 起无过滤的扫描在灭屏时会被暂停，
+     * 所有传感器都会被当成下线；有过滤时还能交给蓝牙芯片做硬件过滤
+     */
+    private List<ScanFilter> buildScanFilters() {
+        List<ScanFilter> filters = new ArrayList<>();
+        for (String mac : targetMacs) {
+            if (BluetoothAdapter.checkBluetoothAddress(mac)) {
+                filters.add(new ScanFilter.Builder().setDeviceAddress(mac).build());
+            } else {
+                Logger.w("Invalid target MAC, not scanned: " + mac);
+            }
+        }
+        return filters;
+    }
+    
     private void startScan() {
         if (bluetoothLeScanner == null) {
             Logger.e("BluetoothLeScanner is null");
             return;
         }
+        List<ScanFilter> filters = buildScanFilters();
+        if (filters.isEmpty()) {
+            Logger.d("No target devices, BLE scan not started");
+            return;
+        }
         
         try {
-            bluetoothLeScanner.startScan(scanCallback);
+            bluetoothLeScanner.startScan(filters, new ScanSettings.Builder().build(), scanCallback);
             isScanning = true;
             Logger.d("BLE scan started");
         } catch (Exception e) {
@@ -160,9 +854,11 @@ public class BLEService extends Service {
         if (!targetMacs.contains(deviceAddress)) {
             return;
         }
+        StartupTimer.mark("first_reading");
         String deviceName = device.getName();        
         byte[] scanRecord = result.getScanRecord().getBytes();
         int rssi = result.getRssi();
+        deviceTracker.onPacket(deviceAddress, rssi, SystemClock.elapsedRealtime());
         
         Logger.d("Found target device: " + deviceAddress + " (Name: " + deviceName + "), RSSI: " + rssi);
         byte[] raw = result.getScanRecord().getBytes();
@@ -239,30 +935,103 @@ public class BLEService extends Service {
             "%  电压=" + voltage + "V");
         if (temperature > 1e-6f) {
             // 将数据发送到MQTT
-            sendToMQTT(deviceAddress, temperature, humidity, battery);           
+            handleReading(deviceAddress, temperature, humidity, battery, voltage);
         }
 
     }
     
-    private void sendToMQTT(String macAddress, float temperature, float humidity, int battery) {
+    /* 被动广播和 GATT 轮询解码出的读数都从这里进入规则 / 聚合 / 上报 */
+    private void handleReading(String deviceAddress, float temperature, float humidity, int battery, float voltage) {
+        readingCount++;
+        int smoothedRssi = deviceTracker.getSmoothedRssi(deviceAddress);
+        /* 本地规则先于上报执行，不受聚合/批量延迟影响 */
+        ruleEngine.evaluate(deviceAddress, temperature, humidity, battery, voltage, smoothedRssi);
+        if (aggregator != null) {
+            aggregator.add(deviceAddress, temperature, humidity, battery, smoothedRssi);
+        } else {
+            sendToMQTT(deviceAddress, temperature, humidity, battery, smoothedRssi);
+        }
+    }
+    
+    /* rssi 为 Integer.MIN_VALUE 时（GATT 轮询的设备没有广播 RSSI）不带 rssi 字段 */
+    private void sendToMQTT(String macAddress, float temperature, float humidity, int battery, int rssi) {
         try {
-            String topic = configManager.getMQTTTopicPrefix() + "/" + macAddress.replace(":", "")+"/state";
-            
             // 构建JSON格式的消息
             String message = String.format(
-                "{\"temperature\":\"%.1f\",\"humidity\":\"%.1f\",\"battery\":%d}",
+                "{\"temperature\":\"%.1f\",\"humidity\":\"%.1f\",\"battery\":%d%s}",
                 temperature,
                 humidity,
-                battery
+                battery,
+                rssi == Integer.MIN_VALUE ? "" : ",\"rssi\":" + rssi
             );
             
-            mqttManager.publish(topic, message);
+            publishState(macAddress, message);
             
         } catch (Exception e) {
             Logger.e("Error sending to MQTT", e);
         }
     }
     
+    /* 聚合窗口输出：主字段用均值，保持与逐条上报相同的 JSON 键，Home Assistant 侧无需改动 */
+    private void publishAggregate(String macAddress, long windowEnd, ReadingAggregator.Snapshot s) {
+        try {
+            String message = String.format(Locale.US,
+                "{\"temperature\":\"%.1f\",\"humidity\":\"%.1f\",\"battery\":%d%s," +
+                "\"temperature_min\":%.2f,\"temperature_max\":%.2f," +
+                "\"humidity_min\":%.2f,\"humidity_max\":%.2f," +
+                "\"count\":%d,\"window\":%d,\"ts\":%d}",
+                s.mean[ReadingAggregator.TEMPERATURE],
+                s.mean[ReadingAggregator.HUMIDITY],
+                (int) s.last[ReadingAggregator.BATTERY],
+                s.count[ReadingAggregator.RSSI] == 0 ? "" : ",\"rssi\":" + Math.round(s.mean[ReadingAggregator.RSSI]),
+                s.min[ReadingAggregator.TEMPERATURE],
+                s.max[ReadingAggregator.TEMPERATURE],
+                s.min[ReadingAggregator.HUMIDITY],
+                s.max[ReadingAggregator.HUMIDITY],
+                s.readings,
+                aggregator.getWindowMs() / 1000,
+                windowEnd / 1000
+            );
+            publishState(macAddress, message);
+        } catch (Exception e) {
+            Logger.e("Error sending aggregate to MQTT", e);
+        }
+    }
+    
+    private void publishState(String macAddress, String message) {
+        if (batcher != null) {
+            batcher.add(macAddress, message);
+            return;
+        }
+        String topic = configManager.getMQTTTopicPrefix() + "/" + macAddress.replace(":", "")+"/state";
+        /* deferred 还没发完时新消息排在后面，不能插到前面去 */
+        boolean deferring = shouldDefer();
+        if (deferring || !deferredTopics.isEmpty()) {
+            if (deferredTopics.size() >= MAX_DEFERRED) {
+                deferredTopics.remove(0);
+                deferredPayloads.remove(0);
+            }
+            deferredTopics.add(topic);
+            deferredPayloads.add(withTimestamp(message));
+            if (deferring) {
+                scheduleDeferredFlush();
+            } else {
+                flushDeferred();
+            }
+            return;
+        }
+        mqttManager.publish(topic, message);
+    }
+    
+    /*
+     * 延后发送的读数可能在几分钟后（或重启后）才发出，补上采样时间 ts（epoch 秒，与聚合 / 批量消息相同），
+     * 订阅方据此记录真实时间而不是收到的时间；已经带 ts 的（聚合输出）不变
+     */
+    private static String withTimestamp(String message) {
+        if (message.contains("\"ts\":") || !message.endsWith("}")) return message;
+        return message.substring(0, message.length() - 1) + ",\"ts\":" + (System.currentTimeMillis() / 1000) + "}";
+    }
+    
     private String bytesToHex(byte[] bytes) {
         StringBuilder sb = new StringBuilder();
         for (byte b : bytes) {
@@ -275,12 +1044,43 @@ public class BLEService extends Service {
     public void onDestroy() {
         super.onDestroy();
         Logger.i("BLEService onDestroy");
+        destroyed = true;
+        startupExecutor.shutdownNow();
+        if (mqttManager != null) {
+            mqttManager.setCommandListener(null, null);
+        }
+        if (!pipelineReady) {
+            if (mqttManager != null) {
+                mqttManager.disconnect();
+            }
+            return;
+        }
         
         if (handler != null && scanRunnable != null) {
             handler.removeCallbacks(scanRunnable);
         }
+        handler.removeCallbacks(presenceRunnable);
+        handler.removeCallbacks(aggregationRunnable);
+        handler.removeCallbacks(batchRunnable);
+        handler.removeCallbacks(gattRunnable);
+        handler.removeCallbacks(statusRunnable);
+        cancelDeferredFlush();
+        unregisterReceiver(deferredFlushReceiver);
+        if (gattPoller != null) {
+            gattPoller.setDevices(new HashSet<String>());
+        }
+        if (batcher != null && mqttManager.isConnected()) {
+            flushWithWakeLock(batcher::flush);
+        }
+        /* 退出前最多再交出一块（disconnect 会先发完队列），其余随 saveState 留到下次启动 */
+        if (!deferredTopics.isEmpty() && mqttManager.isConnected()) {
+            flushWithWakeLock(this::handOffDeferredChunk);
+        }
+        saveState();
+        stateStore.close();
         
         stopScan();
+        Logger.i("Rule engine: " + ruleEngine.getStats());
         mqttManager.disconnect();
     }
     
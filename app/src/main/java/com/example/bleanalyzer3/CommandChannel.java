@@ -0,0 +1,166 @@
+package com.example.bleanalyzer3;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * MQTT 远程命令：订阅 <topic_prefix>/bridge/<client_id>/cmd，应答发到 .../cmd/response。
+ *
+ * 命令格式 {"id":<可选，原样带回>,"cmd":"<命令>", ...}：
+ *  - add_devices / remove_devices：{"macs":["A4:C1:38:25:F4:AE", ...]}
+ *  - set：{"params":{"scan_interval":3000,"aggregation_window":60000,"log_level":"INFO"}}
+ *  - stats：返回运行统计
+ *  - flush：立即发出批量缓冲、待机延后消息和 MQTT 待发队列
+ *
+ * 这里只负责解析和校验：一条命令的所有参数都合法才交给 Target，否则整条拒绝，
+ * 不会只生效一半。Target 在 BLEService 主线程执行，与收包处理串行，切换是原子的。
+ * 修改只保存在内存里（ConfigManager.set），服务重启后以 config.ini 为准。
+ */
+public class CommandChannel {
+
+    public interface Target {
+        /* 返回实际新增 / 移除的设备数 */
+        int addDevices(List<String> macs);
+        int removeDevices(List<String> macs);
+        /* 参数组合不合法时在修改任何东西之前抛 IllegalArgumentException */
+        void applySettings(Map<String, String> settings);
+        void fillStats(JSONObject out) throws JSONException;
+        void flush(JSONObject out) throws JSONException;
+    }
+
+    private static final Pattern MAC_PATTERN = Pattern.compile("([0-9A-F]{2}:){5}[0-9A-F]{2}");
+
+    /* 可远程修改的整数参数及取值范围 [min, max] */
+    private static final Map<String, long[]> LONG_SETTINGS = new LinkedHashMap<>();
+    static {
+        LONG_SETTINGS.put("scan_interval", new long[]{500, 600000});
+        LONG_SETTINGS.put("presence_missed_intervals", new long[]{1, 100});
+        LONG_SETTINGS.put("aggregation_window", new long[]{0, 86400000});
+        LONG_SETTINGS.put("aggregation_hop", new long[]{0, 86400000});
+        LONG_SETTINGS.put("batch_size", new long[]{0, 10000});
+        LONG_SETTINGS.put("batch_interval", new long[]{100, 3600000});
+        LONG_SETTINGS.put("doze_flush_interval", new long[]{0, 3600000});
+        LONG_SETTINGS.put("gatt_max_connections", new long[]{1, 7});
+        LONG_SETTINGS.put("gatt_poll_interval", new long[]{10000, 86400000});
+        LONG_SETTINGS.put("gatt_timeout", new long[]{1000, 300000});
+    }
+
+    private final Target target;
+    private long handled = 0;
+    private long rejected = 0;
+
+    public CommandChannel(Target target) {
+        this.target = target;
+    }
+
+    /* 执行一条命令，返回应答 JSON */
+    public String handle(String payload) {
+        JSONObject response = new JSONObject();
+        String cmd = "";
+        try {
+            JSONObject request = new JSONObject(payload);
+            if (request.has("id")) {
+                response.put("id", request.get("id"));
+            }
+            cmd = request.optString("cmd", "");
+            response.put("cmd", cmd);
+
+            JSONObject result = new JSONObject();
+            switch (cmd) {
+                case "add_devices":
+                    result.put("added", target.addDevices(parseMacs(request)));
+                    break;
+                case "remove_devices":
+                    result.put("removed", target.removeDevices(parseMacs(request)));
+                    break;
+                case "set":
+                    Map<String, String> settings = parseSettings(request.getJSONObject("params"));
+                    target.applySettings(settings);
+                    result.put("applied", new JSONObject(settings));
+                    break;
+                case "stats":
+                    target.fillStats(result);
+                    result.put("commands", handled);
+                    result.put("commands_rejected", rejected);
+                    break;
+                case "flush":
+                    target.flush(result);
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown command '" + cmd + "'");
+            }
+            handled++;
+            response.put("ok", true);
+            response.put("result", result);
+            Logger.i("Remote command " + cmd + " applied: " + result);
+        } catch (JSONException | IllegalArgumentException e) {
+            rejected++;
+            Logger.w("Remote command " + cmd + " rejected: " + e.getMessage());
+            try {
+                response.put("ok", false);
+                response.put("error", e.getMessage());
+            } catch (JSONException ignored) {}
+        }
+        return response.toString();
+    }
+
+    private static List<String> parseMacs(JSONObject request) throws JSONException {
+        JSONArray array = request.getJSONArray("macs");
+        List<String> macs = new ArrayList<>();
+        for (int i = 0; i < array.length(); i++) {
+            /* BluetoothDevice.getAddress() 返回大写，统一成大写再比较 */
+            String mac = array.getString(i).trim().toUpperCase(Locale.US);
+            if (!MAC_PATTERN.matcher(mac).matches()) {
+                throw new IllegalArgumentException("invalid MAC '" + mac + "'");
+            }
+            macs.add(mac);
+        }
+        if (macs.isEmpty()) {
+            throw new IllegalArgumentException("no MACs given");
+        }
+        return macs;
+    }
+
+    /* 校验全部参数并转换成 config.ini 中的字符串形式 */
+    private static Map<String, String> parseSettings(JSONObject params) throws JSONException {
+        Map<String, String> settings = new LinkedHashMap<>();
+        Iterator<String> keys = params.keys();
+        while (keys.hasNext()) {
+            String key = keys.next();
+            if ("log_level".equals(key)) {
+                String level = params.getString(key).toUpperCase(Locale.US);
+                if (!level.equals("DEBUG") && !level.equals("INFO") && !level.equals("WARN") && !level.equals("ERROR")) {
+                    throw new IllegalArgumentException("invalid log_level '" + level + "'");
+                }
+                settings.put(key, level);
+            } else if ("rssi_smoothing".equals(key)) {
+                double alpha = params.getDouble(key);
+                if (alpha < 0.01 || alpha > 1) {
+                    throw new IllegalArgumentException("rssi_smoothing out of range [0.01, 1]");
+                }
+                settings.put(key, String.valueOf((float) alpha));
+            } else if (LONG_SETTINGS.containsKey(key)) {
+                long value = params.getLong(key);
+                long[] range = LONG_SETTINGS.get(key);
+                if (value < range[0] || value > range[1]) {
+                    throw new IllegalArgumentException(key + " out of range [" + range[0] + ", " + range[1] + "]");
+                }
+                settings.put(key, String.valueOf(value));
+            } else {
+                throw new IllegalArgumentException("setting '" + key + "' cannot be changed remotely");
+            }
+        }
+        if (settings.isEmpty()) {
+            throw new IllegalArgumentException("no params given");
+        }
+        return settings;
+    }
+}
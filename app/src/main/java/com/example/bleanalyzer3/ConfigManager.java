@@ -4,16 +4,18 @@ import android.content.Context;
 import android.content.res.AssetManager;
 
 import java.io.*;
-import java.util.HashMap;
 import java.util.Map;
 import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 
 public class ConfigManager {
     private static final String CONFIG_FILE = "config.ini";
     private static final String EXTERNAL_CONFIG_DIR = "BLEMQTTBridge";
     private static ConfigManager instance;
-    private Map<String, String> config = new HashMap<>();
+    /* MQTT 线程也会读取（broker、client_id 等），远程命令在主线程写入 */
+    private Map<String, String> config = new ConcurrentHashMap<>();
     private Context context;
     private final File externalIni;
     private final File externalDir;
@@ -106,23 +108,80 @@ public class ConfigManager {
                     String key = line.substring(0, idx).trim();
                     String val = line.substring(idx + 1).trim();
                     config.put(key, val);
-                    Logger.d("ini [" + no + "]  " + key + " = " + val);   // 详细 dump
                 }
             }
+            Logger.d("ini: " + config.size() + " keys from " + no + " lines");
         }
 
     }
     
+    /* 运行时覆盖配置项（远程命令），只在内存中生效，重新加载 config.ini 后丢失 */
+    public void set(String key, String value) {
+        config.put(key, value);
+    }
+    
     public String[] getDeviceMacs() {
         String macs = config.containsKey("device_macs") ? config.get("device_macs") : "";
         return macs.split(",");
     }
     
+    /* 需要主动 GATT 连接读取的设备（广播中不带数据） */
+    public String[] getGattMacs() {
+        String macs = config.containsKey("gatt_macs") ? config.get("gatt_macs") : "";
+        return macs.split(",");
+    }
+    
+    public int getGattMaxConnections() {
+        String max = config.containsKey("gatt_max_connections") ? config.get("gatt_max_connections") : "2";
+        return Integer.parseInt(max);
+    }
+    
+    public long getGattPollInterval() {
+        String interval = config.containsKey("gatt_poll_interval") ? config.get("gatt_poll_interval") : "600000";
+        return Long.parseLong(interval);
+    }
+    
+    public long getGattTimeout() {
+        String timeout = config.containsKey("gatt_timeout") ? config.get("gatt_timeout") : "30000";
+        return Long.parseLong(timeout);
+    }
+    
     public int getScanInterval() {
         String scaninterval = config.containsKey("scan_interval") ? config.get("scan_interval") : "5000";
         return Integer.parseInt(scaninterval);
     }
     
+    public int getPresenceMissedIntervals() {
+        String missed = config.containsKey("presence_missed_intervals") ? config.get("presence_missed_intervals") : "3";
+        return Integer.parseInt(missed);
+    }
+    
+    public float getRssiSmoothing() {
+        String alpha = config.containsKey("rssi_smoothing") ? config.get("rssi_smoothing") : "0.3";
+        return Float.parseFloat(alpha);
+    }
+    
+    public long getAggregationWindow() {
+        String window = config.containsKey("aggregation_window") ? config.get("aggregation_window") : "0";
+        return Long.parseLong(window);
+    }
+    
+    public long getAggregationHop() {
+        String hop = config.containsKey("aggregation_hop") ? config.get("aggregation_hop") : "0";
+        return Long.parseLong(hop);
+    }
+    
+    /* [rules] 段：所有以 rule. 开头的键，按名字排序 */
+    public Map<String, String> getRules() {
+        Map<String, String> rules = new TreeMap<>();
+        for (Map.Entry<String, String> e : config.entrySet()) {
+            if (e.getKey().startsWith("rule.")) {
+                rules.put(e.getKey(), e.getValue());
+            }
+        }
+        return rules;
+    }
+    
     public String getMQTTBroker() {
         String mqttbroker = config.containsKey("broker") ? config.get("broker") : "tcp://127.0.0.2:1883";
         return mqttbroker;
@@ -148,6 +207,52 @@ public class ConfigManager {
         return mqttopicprefix;
     }
     
+    public int getMQTTProtocolVersion() {
+        String version = config.containsKey("protocol_version") ? config.get("protocol_version") : "3";
+        return Integer.parseInt(version);
+    }
+    
+    public long getMQTTSessionExpiry() {
+        String expiry = config.containsKey("session_expiry") ? config.get("session_expiry") : "0";
+        return Long.parseLong(expiry);
+    }
+    
+    public String getTlsCaFile() {
+        String caFile = config.containsKey("tls_ca_file") ? config.get("tls_ca_file") : "";
+        return caFile;
+    }
+    
+    public int getTlsSessionTimeout() {
+        String timeout = config.containsKey("tls_session_timeout") ? config.get("tls_session_timeout") : "86400";
+        return Integer.parseInt(timeout);
+    }
+    
+    public String getPayloadCompression() {
+        String compression = config.containsKey("payload_compression") ? config.get("payload_compression") : "none";
+        return compression;
+    }
+    
+    public int getBatchSize() {
+        String size = config.containsKey("batch_size") ? config.get("batch_size") : "0";
+        return Integer.parseInt(size);
+    }
+    
+    public long getBatchInterval() {
+        String interval = config.containsKey("batch_interval") ? config.get("batch_interval") : "10000";
+        return Long.parseLong(interval);
+    }
+    
+    public long getDozeFlushInterval() {
+        String interval = config.containsKey("doze_flush_interval") ? config.get("doze_flush_interval") : "60000";
+        return Long.parseLong(interval);
+    }
+    
+    /* 是否订阅 <topic_prefix>/bridge/<client_id>/cmd 接受远程命令；默认关闭，需显式开启 */
+    public boolean isCommandChannelEnabled() {
+        String enabled = config.containsKey("command_channel") ? config.get("command_channel") : "false";
+        return Boolean.parseBoolean(enabled);
+    }
+    
     public String getConfigFilePath() {
         return externalIni.getAbsolutePath();
     }
@@ -0,0 +1,193 @@
+package com.example.bleanalyzer3;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 每个传感器的在线状态跟踪：RSSI 平滑（EWMA）、广播间隔估计、超时下线。
+ *
+ * 超时检测使用一个共享的时间轮（timer wheel），而不是每个设备一个定时任务：
+ * 收包时把设备挂到 deadline 对应的槽位（O(1)），tick 时只遍历当前槽位。
+ * 所有方法都应在同一线程（BLEService 的主线程 handler）调用，因此不加锁。
+ */
+public class DeviceTracker {
+
+    public interface Listener {
+        void onAvailabilityChanged(String mac, boolean online);
+    }
+
+    private static final int WHEEL_SLOTS = 64;
+    private static final long MIN_INTERVAL_MS = 100;
+    /* 广播间隔的 EWMA 系数，独立于 rssi_smoothing：间隔本身很稳定，慢一点收敛，少受丢包影响 */
+    private static final float INTERVAL_ALPHA = 0.2f;
+
+    private static final class DeviceState {
+        final String mac;
+        float rssi;
+        long lastSeen;
+        long intervalMs;          // 估计的广播间隔，0 表示尚未估计
+        long deadline;
+        boolean online;
+
+        /* 时间轮双向链表 */
+        DeviceState prev, next;
+        int slot = -1;
+
+        DeviceState(String mac) {
+            this.mac = mac;
+        }
+    }
+
+    private final Map<String, DeviceState> states = new HashMap<>();
+    private final DeviceState[] wheel = new DeviceState[WHEEL_SLOTS];
+    private final long tickMs;
+    private final Listener listener;
+
+    private float rssiAlpha;
+    private int missedIntervals;
+    private long minTimeoutMs;
+    private long lastTick = -1;       // 最近一次处理过的 tick 编号
+    private int onlineCount = 0;
+
+    public DeviceTracker(long tickMs, float rssiAlpha, int missedIntervals, long minTimeoutMs,
+                         Listener listener) {
+        this.tickMs = tickMs;
+        this.listener = listener;
+        configure(rssiAlpha, missedIntervals, minTimeoutMs);
+    }
+
+    public void configure(float rssiAlpha, int missedIntervals, long minTimeoutMs) {
+        this.rssiAlpha = Math.max(0.01f, Math.min(1f, rssiAlpha));
+        this.missedIntervals = Math.max(1, missedIntervals);
+        this.minTimeoutMs = Math.max(tickMs, minTimeoutMs);
+    }
+
+    public long getTickMs() {
+        return tickMs;
+    }
+
+    /* 收到目标设备广播包时调用，now 为单调时钟（elapsedRealtime） */
+    public void onPacket(String mac, int rssi, long now) {
+        DeviceState s = states.get(mac);
+        if (s == null) {
+            s = new DeviceState(mac);
+            s.rssi = rssi;
+            states.put(mac, s);
+        } else {
+            s.rssi += rssiAlpha * (rssi - s.rssi);
+
+            /* 间隔估计：单次间隔最多计入 3 倍当前估计，丢包和扫描暂停不会把估计一下拉爆 */
+            long gap = now - s.lastSeen;
+            if (gap >= MIN_INTERVAL_MS) {
+                if (s.intervalMs == 0) {
+                    s.intervalMs = gap;
+                } else {
+                    long clamped = Math.min(gap, s.intervalMs * 3);
+                    s.intervalMs += (long) (INTERVAL_ALPHA * (clamped - s.intervalMs));
+                }
+            }
+        }
+        s.lastSeen = now;
+
+        long timeout = Math.max(minTimeoutMs, s.intervalMs * missedIntervals);
+        s.deadline = now + timeout;
+        unlink(s);
+        link(s);
+
+        if (!s.online) {
+            s.online = true;
+            onlineCount++;
+            Logger.i("Device online: " + mac);
+            listener.onAvailabilityChanged(mac, true);
+        }
+    }
+
+    /*
+     * 周期调用（间隔 tickMs），处理所有已经完整过去的槽位。
+     * 槽位 k 里的 deadline 落在 [k*tickMs, (k+1)*tickMs)，要等到 now >= (k+1)*tickMs 才处理，
+     * 否则 deadline 在本槽位后半段的设备要再等一整圈（WHEEL_SLOTS 个 tick）才会下线
+     */
+    public void tick(long now) {
+        long current = now / tickMs - 1;
+        if (lastTick < 0 || current - lastTick > WHEEL_SLOTS) {
+            lastTick = Math.max(-1, current - WHEEL_SLOTS);
+        }
+        while (lastTick < current) {
+            lastTick++;
+            expireSlot((int) (lastTick % WHEEL_SLOTS), now);
+        }
+    }
+
+    private void expireSlot(int slot, long now) {
+        DeviceState s = wheel[slot];
+        while (s != null) {
+            DeviceState next = s.next;
+            if (s.deadline <= now) {
+                unlink(s);
+                s.online = false;
+                onlineCount--;
+                Logger.w("Device offline: " + s.mac + " (silent " + (now - s.lastSeen) + " ms)");
+                listener.onAvailabilityChanged(s.mac, false);
+            }
+            s = next;
+        }
+    }
+
+    private void link(DeviceState s) {
+        int slot = (int) ((s.deadline / tickMs) % WHEEL_SLOTS);
+        s.slot = slot;
+        s.prev = null;
+        s.next = wheel[slot];
+        if (s.next != null) s.next.prev = s;
+        wheel[slot] = s;
+    }
+
+    private void unlink(DeviceState s) {
+        if (s.slot < 0) return;
+        if (s.prev != null) s.prev.next = s.next;
+        else wheel[s.slot] = s.next;
+        if (s.next != null) s.next.prev = s.prev;
+        s.prev = s.next = null;
+        s.slot = -1;
+    }
+
+    /* 不再跟踪的设备（例如从目标列表移除） */
+    public void remove(String mac) {
+        DeviceState s = states.remove(mac);
+        if (s == null) return;
+        unlink(s);
+        if (s.online) onlineCount--;
+    }
+
+    public int getSmoothedRssi(String mac) {
+        DeviceState s = states.get(mac);
+        return s == null ? Integer.MIN_VALUE : Math.round(s.rssi);
+    }
+
+    public long getIntervalMs(String mac) {
+        DeviceState s = states.get(mac);
+        return s == null ? 0 : s.intervalMs;
+    }
+
+    /* 在线设备中最长的估计广播间隔，0 表示还没有估计；BLEService 据此决定每次扫描至少开多久 */
+    public long getMaxIntervalMs() {
+        long max = 0;
+        for (DeviceState s : states.values()) {
+            if (s.online && s.intervalMs > max) max = s.intervalMs;
+        }
+        return max;
+    }
+
+    public boolean isOnline(String mac) {
+        DeviceState s = states.get(mac);
+        return s != null && s.online;
+    }
+
+    public int getOnlineCount() {
+        return onlineCount;
+    }
+
+    public int getTrackedCount() {
+        return states.size();
+    }
+}
@@ -0,0 +1,99 @@
+package com.example.bleanalyzer3;
+
+import android.content.Context;
+import android.os.PowerManager;
+import android.os.SystemClock;
+
+/**
+ * 只在上报（flush）期间持有的 PARTIAL_WAKE_LOCK，并统计累计持有时间。
+ *
+ * 待机 / Doze 时读数先在内存里攒着，到点集中发一次，CPU 只在发送的这一小段时间保持唤醒。
+ * 设置了超时，即使 flush 卡在网络上也不会无限期持锁；分多次发送的长 flush 每一段之前 renew 重新计时，
+ * 统计只计入锁实际持有的时间（超时自动释放之后的部分不算）。
+ */
+public class FlushWakeLock {
+    private static final long MAX_HOLD_MS = 30000;
+
+    private final PowerManager.WakeLock wakeLock;
+    private long totalHeldMs = 0;
+    private long maxHeldMs = 0;
+    private int acquisitions = 0;
+    private int holders = 0;
+    private long heldSince;
+    private long expiresAt;     // 到这个时间点系统会自动释放
+
+    public FlushWakeLock(Context context) {
+        PowerManager pm = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+        wakeLock = pm == null ? null : pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "BLEMQTTBridge:flush");
+        if (wakeLock != null) {
+            wakeLock.setReferenceCounted(false);
+        }
+    }
+
+    /*
+     * 消息由 MQTT 线程异步发送，锁要持有到发送结束，所以拆成 acquire / release。
+     * 可以嵌套（例如批量 flush 时 deferred 还没发完），最外层 release 时才真正释放并计入统计；只在主线程调用
+     */
+    public void acquire() {
+        if (holders++ > 0) {
+            renew();
+            return;
+        }
+        heldSince = SystemClock.elapsedRealtime();
+        expiresAt = heldSince + MAX_HOLD_MS;
+        if (wakeLock != null) {
+            wakeLock.acquire(MAX_HOLD_MS);
+        }
+    }
+
+    /*
+     * 持有期间重新开始超时计时。返回 false 表示锁已经超时自动释放过：
+     * 那一段按实际持有时间入账，从现在起重新持有，调用方可以据此放弃剩下的工作
+     */
+    public boolean renew() {
+        if (holders == 0) return false;
+        long now = SystemClock.elapsedRealtime();
+        boolean expired = now >= expiresAt;
+        if (expired) {
+            record(expiresAt - heldSince);
+            heldSince = now;
+        }
+        expiresAt = now + MAX_HOLD_MS;
+        if (wakeLock != null) {
+            wakeLock.acquire(MAX_HOLD_MS);
+        }
+        return !expired;
+    }
+
+    public void release() {
+        if (holders == 0 || --holders > 0) return;
+        if (wakeLock != null && wakeLock.isHeld()) {
+            wakeLock.release();
+        }
+        record(Math.min(SystemClock.elapsedRealtime(), expiresAt) - heldSince);
+    }
+
+    private void record(long held) {
+        totalHeldMs += held;
+        if (held > maxHeldMs) maxHeldMs = held;
+        acquisitions++;
+    }
+
+    public long getTotalHeldMs() {
+        return totalHeldMs;
+    }
+
+    public long getMaxHeldMs() {
+        return maxHeldMs;
+    }
+
+    public int getAcquisitions() {
+        return acquisitions;
+    }
+
+    /* 从磁盘恢复的累计值（服务被系统杀掉重启后继续累计） */
+    public void restore(long totalHeldMs, int acquisitions) {
+        this.totalHeldMs = totalHeldMs;
+        this.acquisitions = acquisitions;
+    }
+}
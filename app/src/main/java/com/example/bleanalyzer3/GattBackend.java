@@ -0,0 +1,35 @@
+package com.example.bleanalyzer3;
+
+import java.util.UUID;
+
+/**
+ * GATT 客户端的最小抽象，GattPoller 只通过它访问蓝牙。
+ * 真机实现是 AndroidGattBackend；调度逻辑可以换一个假的实现来验证。
+ *
+ * 所有回调都必须投递回 GattPoller 所在的线程（BLEService 主线程）。
+ */
+public interface GattBackend {
+
+    interface Callback {
+        /* 连接建立且服务发现完成，可以开始读写 */
+        void onReady(String mac);
+
+        void onDisconnected(String mac);
+
+        /* 上一个 read / enableNotifications 完成；value 为读到的值，失败时 success=false */
+        void onOperationComplete(String mac, UUID characteristic, boolean success, byte[] value);
+
+        void onNotification(String mac, UUID characteristic, byte[] value);
+    }
+
+    void setCallback(Callback callback);
+
+    /* 发起连接，返回 false 表示无法发起（适配器不可用等） */
+    boolean connect(String mac);
+
+    void disconnect(String mac);
+
+    boolean read(String mac, UUID service, UUID characteristic);
+
+    boolean enableNotifications(String mac, UUID service, UUID characteristic);
+}
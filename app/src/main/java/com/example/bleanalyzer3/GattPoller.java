@@ -0,0 +1,256 @@
+package com.example.bleanalyzer3;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * 主动 GATT 轮询：用于不在广播里带数据的传感器（如原厂固件的 LYWSD03MMC）。
+ *
+ *  - 全局连接数上限 maxConnections，超出的设备排队等待；
+ *  - 每次 tick 从到期的设备里挑最久没有读数的先连（stalest first）；
+ *  - 每个设备的 GATT 操作进入各自的命令队列，同一时刻只有一个操作在途；
+ *  - 优先订阅通知（收到第一条通知即完成），订阅失败时退回一次 read；
+ *  - 超时或失败按指数退避重试，最长不超过一个轮询周期。
+ *
+ * 不依赖 Android 类：蓝牙访问通过 GattBackend，时间通过 Clock，
+ * 因此可以配合假的 backend 驱动。只在 BLEService 主线程调用。
+ */
+public class GattPoller implements GattBackend.Callback {
+
+    public interface ReadingListener {
+        void onReading(String mac, float temperature, float humidity, int battery, float voltage);
+    }
+
+    public interface Clock {
+        long now();
+    }
+
+    /* LYWSD03MMC 原厂固件：温度 int16 ×0.01 ℃，湿度 uint8 %，电压 uint16 mV */
+    static final UUID LYWSD03_SERVICE = UUID.fromString("ebe0ccb0-7a0a-4b0c-8a1a-6ff2997da3a6");
+    static final UUID LYWSD03_DATA = UUID.fromString("ebe0ccc1-7a0a-4b0c-8a1a-6ff2997da3a6");
+
+    private static final long RETRY_BASE_MS = 15000;
+
+    private static final int CMD_NOTIFY = 0;
+    private static final int CMD_READ = 1;
+
+    private static final class Command {
+        final int type;
+        final UUID service;
+        final UUID characteristic;
+
+        Command(int type, UUID service, UUID characteristic) {
+            this.type = type;
+            this.service = service;
+            this.characteristic = characteristic;
+        }
+    }
+
+    private static final class Device {
+        final String mac;
+        final ArrayDeque<Command> queue = new ArrayDeque<>();
+        Command inFlight;
+        boolean active;
+        long lastReading = 0;
+        long nextDue = 0;
+        long sessionDeadline;
+        int failures = 0;
+
+        Device(String mac) {
+            this.mac = mac;
+        }
+    }
+
+    private final GattBackend backend;
+    private final Clock clock;
+    private final ReadingListener listener;
+    private final Map<String, Device> devices = new HashMap<>();
+    private final List<Device> order = new ArrayList<>();
+
+    private int maxConnections;
+    private long pollIntervalMs;
+    private long timeoutMs;
+    private int activeCount = 0;
+    private long polls = 0;
+    private long failuresTotal = 0;
+
+    public GattPoller(GattBackend backend, Clock clock, ReadingListener listener,
+                      int maxConnections, long pollIntervalMs, long timeoutMs) {
+        this.backend = backend;
+        this.clock = clock;
+        this.listener = listener;
+        backend.setCallback(this);
+        configure(maxConnections, pollIntervalMs, timeoutMs);
+    }
+
+    public void configure(int maxConnections, long pollIntervalMs, long timeoutMs) {
+        this.maxConnections = Math.max(1, maxConnections);
+        this.pollIntervalMs = pollIntervalMs;
+        this.timeoutMs = timeoutMs;
+    }
+
+    /* 替换轮询设备列表；被移除的设备如正在连接会立即断开 */
+    public void setDevices(Collection<String> macs) {
+        for (Device d : new ArrayList<>(order)) {
+            if (!macs.contains(d.mac)) {
+                if (d.active) finish(d, false);
+                devices.remove(d.mac);
+                order.remove(d);
+            }
+        }
+        for (String mac : macs) {
+            if (mac.isEmpty() || devices.containsKey(mac)) continue;
+            Device d = new Device(mac);
+            devices.put(mac, d);
+            order.add(d);
+        }
+    }
+
+    public int getDeviceCount() {
+        return order.size();
+    }
+
+    public int getActiveCount() {
+        return activeCount;
+    }
+
+    /* 周期调用：处理超时，并在连接数允许时启动到期设备中最久未读的那个 */
+    public void tick() {
+        long now = clock.now();
+        for (Device d : order) {
+            if (d.active && now >= d.sessionDeadline) {
+                Logger.w("GATT session timed out: " + d.mac);
+                finish(d, false);
+            }
+        }
+        while (activeCount < maxConnections) {
+            Device stalest = null;
+            for (Device d : order) {
+                if (d.active || d.nextDue > now) continue;
+                if (stalest == null || d.lastReading < stalest.lastReading) stalest = d;
+            }
+            if (stalest == null) break;
+            start(stalest, now);
+        }
+    }
+
+    private void start(Device d, long now) {
+        d.queue.clear();
+        d.inFlight = null;
+        d.active = true;
+        activeCount++;
+        d.sessionDeadline = now + timeoutMs;
+        Logger.d("GATT connecting to " + d.mac + " (" + activeCount + "/" + maxConnections + " connections)");
+        if (!backend.connect(d.mac)) {
+            finish(d, false);
+        }
+    }
+
+    private void pump(Device d) {
+        while (d.active && d.inFlight == null && !d.queue.isEmpty()) {
+            Command cmd = d.queue.poll();
+            d.inFlight = cmd;
+            boolean started = cmd.type == CMD_NOTIFY
+                ? backend.enableNotifications(d.mac, cmd.service, cmd.characteristic)
+                : backend.read(d.mac, cmd.service, cmd.characteristic);
+            if (!started) {
+                d.inFlight = null;
+                commandFailed(d, cmd);
+            }
+        }
+    }
+
+    /* 订阅失败退回 read；read 也失败则本次会话失败 */
+    private void commandFailed(Device d, Command cmd) {
+        if (cmd.type == CMD_NOTIFY) {
+            Logger.d("GATT notifications unavailable on " + d.mac + ", falling back to read");
+            d.queue.add(new Command(CMD_READ, cmd.service, cmd.characteristic));
+        } else {
+            finish(d, false);
+        }
+    }
+
+    @Override
+    public void onReady(String mac) {
+        Device d = devices.get(mac);
+        if (d == null || !d.active) return;
+        d.queue.add(new Command(CMD_NOTIFY, LYWSD03_SERVICE, LYWSD03_DATA));
+        pump(d);
+    }
+
+    @Override
+    public void onOperationComplete(String mac, UUID characteristic, boolean success, byte[] value) {
+        Device d = devices.get(mac);
+        if (d == null || !d.active || d.inFlight == null) return;
+        Command cmd = d.inFlight;
+        d.inFlight = null;
+        if (!success) {
+            commandFailed(d, cmd);
+        } else if (cmd.type == CMD_READ) {
+            deliver(d, value);
+            return;
+        }
+        /* 订阅成功后等待第一条通知 */
+        pump(d);
+    }
+
+    @Override
+    public void onNotification(String mac, UUID characteristic, byte[] value) {
+        Device d = devices.get(mac);
+        if (d == null || !d.active || !LYWSD03_DATA.equals(characteristic)) return;
+        deliver(d, value);
+    }
+
+    @Override
+    public void onDisconnected(String mac) {
+        Device d = devices.get(mac);
+        if (d != null && d.active) {
+            Logger.d("GATT disconnected before reading: " + mac);
+            finish(d, false);
+        }
+    }
+
+    private void deliver(Device d, byte[] value) {
+        if (value == null || value.length < 5) {
+            finish(d, false);
+            return;
+        }
+        float temperature = (short) ((value[0] & 0xFF) | ((value[1] & 0xFF) << 8)) / 100.0f;
+        float humidity = value[2] & 0xFF;
+        int millivolts = (value[3] & 0xFF) | ((value[4] & 0xFF) << 8);
+        /* 纽扣电池 2.1 V ~ 3.1 V 线性映射到 0 ~ 100 % */
+        int battery = Math.max(0, Math.min(100, (millivolts - 2100) / 10));
+        finish(d, true);
+        listener.onReading(d.mac, temperature, humidity, battery, millivolts / 1000.0f);
+    }
+
+    private void finish(Device d, boolean ok) {
+        long now = clock.now();
+        backend.disconnect(d.mac);
+        d.active = false;
+        d.inFlight = null;
+        d.queue.clear();
+        activeCount--;
+        polls++;
+        if (ok) {
+            d.failures = 0;
+            d.lastReading = now;
+            d.nextDue = now + pollIntervalMs;
+        } else {
+            failuresTotal++;
+            d.failures++;
+            long backoff = RETRY_BASE_MS << Math.min(d.failures - 1, 10);
+            d.nextDue = now + Math.min(backoff, pollIntervalMs);
+        }
+    }
+
+    public String getStats() {
+        return "devices=" + order.size() + " active=" + activeCount + "/" + maxConnections
+            + " polls=" + polls + " failures=" + failuresTotal;
+    }
+}
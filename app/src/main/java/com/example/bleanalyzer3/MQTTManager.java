@@ -1,18 +1,86 @@
 package com.example.bleanalyzer3;
 
 import android.content.Context;
+import android.os.SystemClock;
 import org.eclipse.paho.client.mqttv3.*;
 import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.eclipse.paho.mqttv5.client.IMqttToken;
+import org.eclipse.paho.mqttv5.client.MqttClientPersistence;
+import org.eclipse.paho.mqttv5.client.MqttConnectionOptions;
+import org.eclipse.paho.mqttv5.client.persist.MqttDefaultFilePersistence;
+import org.eclipse.paho.mqttv5.common.packet.MqttProperties;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class MQTTManager {
+    /* 与 BLEService 的 deferred 上限一致：断线期间攒下的消息不会在交给这里时被挤掉 */
+    public static final int MAX_PENDING = 5000;
+    private static final long MAX_RETRY_DELAY_MS = 60000;
+    
     private static MQTTManager instance;
     private MqttClient mqttClient;
+    /* MQTT 5 客户端（protocol_version=5 时使用，与 mqttClient 二选一） */
+    private org.eclipse.paho.mqttv5.client.MqttClient mqtt5Client;
     private ConfigManager configManager;
-    private boolean isConnected = false;
+    private final File persistenceDir;
+    private volatile boolean isConnected = false;
+    /* ssl:// 时所有连接共用，TLS 会话缓存跨重连保留 */
+    private TlsSocketFactory tlsSocketFactory;
+    
+    /* 上行流量统计：每次（重）连接时打印并清零（MQTT 线程写，主线程读） */
+    private int connectCount = 0;
+    private final AtomicLong publishedMessages = new AtomicLong();
+    private final AtomicLong publishedBytes = new AtomicLong();
+    private final AtomicLong totalPublished = new AtomicLong();
+    private final AtomicLong droppedMessages = new AtomicLong();
+    
+    /* 连接与重试都在这个线程上执行，不阻塞调用方（BLEService 主线程） */
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+    /* 规则动作单独一个线程发送，不排在普通队列后面逐条等 PUBACK（Paho 客户端本身是线程安全的） */
+    private final ExecutorService urgentExecutor = Executors.newSingleThreadExecutor();
+    private boolean connecting = false;
+    private volatile boolean stopped = false;   // disconnect() 之后不再重试
+    private int retryCount = 0;
+    
+    /*
+     * 待发队列：所有消息都先进队列，由 MQTT 线程按顺序发出（QoS1 同步等待 PUBACK，不能放在主线程）。
+     * 未连接时（启动阶段、断线期间）消息留在队列里，连上后接着发；满了丢弃最旧的
+     */
+    static final class PendingMessage {
+        final String topic;
+        final byte[] payload;
+        final boolean retained;
+        
+        PendingMessage(String topic, byte[] payload, boolean retained) {
+            this.topic = topic;
+            this.payload = payload;
+            this.retained = retained;
+        }
+    }
+    private final ArrayDeque<PendingMessage> pending = new ArrayDeque<>();
+    /* 优先消息（规则动作），同样由 pending 的锁保护；断线期间也在这里等，连上后先于普通队列发出 */
+    private final ArrayDeque<PendingMessage> urgent = new ArrayDeque<>();
+    private boolean drainScheduled = false;     // 由 pending 的锁保护
+    
+    /* 远程命令：主题和回调由 BLEService 设置，每次（重）连接成功后重新订阅 */
+    public interface CommandListener {
+        void onCommand(String payload);
+    }
+    private volatile String commandTopic;
+    private volatile CommandListener commandListener;
     
     private MQTTManager(Context context) {
         this.configManager = ConfigManager.getInstance(context);
+        this.persistenceDir = new File(context.getFilesDir(), "mqtt");
     }
     
     public static synchronized MQTTManager getInstance(Context context) {
@@ -22,7 +90,80 @@ public class MQTTManager {
         return instance;
     }
     
+    /* 异步连接，失败按 1 s、2 s、4 s ... 最长 60 s 退避重试，直到连上为止 */
+    public synchronized void connectAsync() {
+        if (connecting || isConnected()) {
+            return;
+        }
+        connecting = true;
+        stopped = false;
+        executor.execute(this::connectWithRetry);
+    }
+    
+    private void connectWithRetry() {
+        if (stopped) {
+            synchronized (this) {
+                connecting = false;
+            }
+            return;
+        }
+        /* Paho 的自动重连可能已经先连上了，再 connect 会抛 32100，3.1.1 还会把好好的客户端拆掉 */
+        if (!isConnected()) {
+            connect();
+        }
+        if (isConnected()) {
+            synchronized (this) {
+                connecting = false;
+                retryCount = 0;
+            }
+            StartupTimer.mark("mqtt_connected");
+            urgentExecutor.execute(this::drainUrgent);
+            drainPending();
+            return;
+        }
+        long delay;
+        synchronized (this) {
+            delay = Math.min(MAX_RETRY_DELAY_MS, 1000L << Math.min(retryCount, 6));
+            retryCount++;
+        }
+        Logger.i("MQTT connect retry #" + retryCount + " in " + delay + " ms");
+        executor.schedule(this::connectWithRetry, delay, TimeUnit.MILLISECONDS);
+    }
+    
     public void connect() {
+        long start = SystemClock.elapsedRealtime();
+        if (configManager.getMQTTProtocolVersion() == 5) {
+            connectV5();
+        } else {
+            connectV3();
+        }
+        long elapsed = SystemClock.elapsedRealtime() - start;
+        
+        connectCount++;
+        StringBuilder stats = new StringBuilder("MQTT connect #").append(connectCount)
+            .append(isConnected ? " succeeded" : " failed").append(" in ").append(elapsed).append(" ms")
+            .append(", queued=").append(getPendingCount()).append(" dropped=").append(droppedMessages.get());
+        if (tlsSocketFactory != null) {
+            stats.append(", TLS handshakes=").append(tlsSocketFactory.getHandshakeCount())
+                 .append(" resumed=").append(tlsSocketFactory.getResumptionCount());
+        }
+        stats.append(", since last connect: ").append(publishedMessages.getAndSet(0)).append(" messages / ")
+             .append(publishedBytes.getAndSet(0)).append(" payload bytes");
+        Logger.i(stats.toString());
+    }
+    
+    /* broker 为 ssl:// 时返回共享的 TLS SocketFactory，否则返回 null（使用明文 TCP） */
+    private TlsSocketFactory getTlsSocketFactory(String broker) throws Exception {
+        if (!broker.startsWith("ssl://")) {
+            return null;
+        }
+        if (tlsSocketFactory == null) {
+            tlsSocketFactory = new TlsSocketFactory(configManager.getTlsCaFile(), configManager.getTlsSessionTimeout());
+        }
+        return tlsSocketFactory;
+    }
+    
+    private void connectV3() {
         try {
             ConfigManager config = ConfigManager.getInstance(null);
             String broker = config.getMQTTBroker();
@@ -30,6 +171,13 @@ public class MQTTManager {
             
             Logger.i("Connecting to MQTT broker: " + broker + " with client ID: " + clientId);
             
+            /* 旧客户端可能还在自动重连，先关掉，避免两个连接并存 */
+            if (mqttClient != null) {
+                try {
+                    mqttClient.disconnectForcibly(0, 0, false);
+                    mqttClient.close();
+                } catch (Exception ignored) {}
+            }
             mqttClient = new MqttClient(broker, clientId, new MemoryPersistence());
             
             MqttConnectOptions options = new MqttConnectOptions();
@@ -37,6 +185,10 @@ public class MQTTManager {
             options.setCleanSession(true);
             options.setConnectionTimeout(10);
             options.setKeepAliveInterval(20);
+            TlsSocketFactory socketFactory = getTlsSocketFactory(broker);
+            if (socketFactory != null) {
+                options.setSocketFactory(socketFactory);
+            }
             
             String username = config.getMQTTUsername();
             String password = config.getMQTTPassword();
@@ -48,50 +200,456 @@ public class MQTTManager {
                 }
             }
             
+            mqttClient.setCallback(new MqttCallbackExtended() {
+                @Override
+                public void connectComplete(boolean reconnect, String serverURI) {
+                    onConnectComplete(reconnect);
+                }
+                
+                @Override
+                public void connectionLost(Throwable cause) {
+                    onConnectionLost(cause);
+                }
+                
+                @Override
+                public void messageArrived(String topic, MqttMessage message) {
+                    onMessageArrived(topic, message.getPayload(), message.isRetained());
+                }
+                
+                @Override
+                public void deliveryComplete(IMqttDeliveryToken token) {
+                }
+            });
             mqttClient.connect(options);
             isConnected = true;
             Logger.i("MQTT connected successfully");
             
+        } catch (MqttException e) {
+            if (isAlreadyConnecting(e.getReasonCode())) {
+                Logger.i("MQTT client already connected or connecting: " + e.getMessage());
+                isConnected = mqttClient.isConnected();
+            } else {
+                Logger.e("MQTT connection failed", e);
+                isConnected = false;
+            }
         } catch (Exception e) {
             Logger.e("MQTT connection failed", e);
             isConnected = false;
         }
     }
     
+    /*
+     * MQTT 5：
+     *  - session_expiry > 0 时使用持久会话（cleanStart=false + 固定 client ID + 文件持久化），
+     *    QoS1 未确认的消息在断线重连、甚至进程重启后由 Paho 重发；
+     *  - 发布端主题别名由 Paho 按 broker 在 CONNACK 中给出的 Topic Alias Maximum 自动分配，
+     *    同一设备的 state 主题在首条消息之后只发 2 字节别名。
+     */
+    private void connectV5() {
+        try {
+            ConfigManager config = ConfigManager.getInstance(null);
+            String broker = config.getMQTTBroker();
+            long sessionExpiry = config.getMQTTSessionExpiry();
+            boolean persistent = sessionExpiry > 0;
+            /* 持久会话必须使用固定的 client ID，否则 broker 找不到上一次的会话 */
+            String clientId = persistent
+                ? config.getMQTTClientId()
+                : config.getMQTTClientId() + "_" + UUID.randomUUID().toString().substring(0, 8);
+            
+            Logger.i("Connecting to MQTT 5 broker: " + broker + " with client ID: " + clientId
+                + ", session expiry: " + sessionExpiry + "s");
+            
+            if (mqtt5Client == null || !clientId.equals(mqtt5Client.getClientId())) {
+                /*
+                 * 非持久会话每次重试都换新的 client ID：旧客户端可能还在自动重连，
+                 * 不关掉的话连接、线程和 messageArrived 回调都会留着（同一条命令会被执行多次）
+                 */
+                if (mqtt5Client != null) {
+                    try {
+                        mqtt5Client.disconnectForcibly(0, 0, false);
+                        mqtt5Client.close(true);
+                    } catch (Exception ignored) {}
+                }
+                MqttClientPersistence persistence = persistent
+                    ? new MqttDefaultFilePersistence(persistenceDir.getAbsolutePath())
+                    : new org.eclipse.paho.mqttv5.client.persist.MemoryPersistence();
+                mqtt5Client = new org.eclipse.paho.mqttv5.client.MqttClient(broker, clientId, persistence);
+            }
+            
+            MqttConnectionOptions options = new MqttConnectionOptions();
+            options.setAutomaticReconnect(true);
+            options.setCleanStart(!persistent);
+            if (persistent) {
+                options.setSessionExpiryInterval(sessionExpiry);
+            }
+            options.setConnectionTimeout(10);
+            options.setKeepAliveInterval(20);
+            TlsSocketFactory socketFactory = getTlsSocketFactory(broker);
+            if (socketFactory != null) {
+                options.setSocketFactory(socketFactory);
+            }
+            
+            String username = config.getMQTTUsername();
+            String password = config.getMQTTPassword();
+            
+            if (username != null && !username.isEmpty()) {
+                options.setUserName(username);
+                if (password != null && !password.isEmpty()) {
+                    options.setPassword(password.getBytes(StandardCharsets.UTF_8));
+                }
+            }
+            
+            mqtt5Client.setCallback(new org.eclipse.paho.mqttv5.client.MqttCallback() {
+                @Override
+                public void connectComplete(boolean reconnect, String serverURI) {
+                    onConnectComplete(reconnect);
+                }
+                
+                @Override
+                public void disconnected(org.eclipse.paho.mqttv5.client.MqttDisconnectResponse response) {
+                    onConnectionLost(response.getException());
+                }
+                
+                @Override
+                public void mqttErrorOccurred(org.eclipse.paho.mqttv5.common.MqttException exception) {
+                    Logger.e("MQTT 5 error", exception);
+                }
+                
+                @Override
+                public void messageArrived(String topic, org.eclipse.paho.mqttv5.common.MqttMessage message) {
+                    onMessageArrived(topic, message.getPayload(), message.isRetained());
+                }
+                
+                @Override
+                public void deliveryComplete(IMqttToken token) {
+                }
+                
+                @Override
+                public void authPacketArrived(int reasonCode, MqttProperties properties) {
+                }
+            });
+            IMqttToken token = mqtt5Client.connectWithResult(options);
+            isConnected = true;
+            
+            MqttProperties props = token.getResponseProperties();
+            Integer aliasMax = props == null ? null : props.getTopicAliasMaximum();
+            Logger.i("MQTT 5 connected successfully, session present: " + token.getSessionPresent()
+                + ", broker topic alias maximum: " + (aliasMax == null ? 0 : aliasMax));
+                
+        } catch (org.eclipse.paho.mqttv5.common.MqttException e) {
+            if (isAlreadyConnecting(e.getReasonCode())) {
+                Logger.i("MQTT 5 client already connected or connecting: " + e.getMessage());
+                isConnected = mqtt5Client.isConnected();
+            } else {
+                Logger.e("MQTT 5 connection failed", e);
+                isConnected = false;
+            }
+        } catch (Exception e) {
+            Logger.e("MQTT 5 connection failed", e);
+            isConnected = false;
+        }
+    }
+    
+    /*
+     * 持久会话复用同一个客户端，自动重连可能正在进行或已经完成：这不是连接失败，
+     * 不能因此把 isConnected 清掉（否则 drainPending 不再运行，待发队列一直涨到丢消息）。
+     * 两个版本的 Paho 用的是同样的原因码
+     */
+    private static boolean isAlreadyConnecting(int reasonCode) {
+        return reasonCode == MqttException.REASON_CODE_CLIENT_CONNECTED
+            || reasonCode == MqttException.REASON_CODE_CONNECT_IN_PROGRESS;
+    }
+    
+    /*
+     * 首次连接和 Paho 自动重连成功后回调（在 Paho 的线程上），订阅和补发要切到自己的线程。
+     * 3.1.1 使用干净会话，断线后 broker 不保留订阅，所以每次都要重新订阅命令主题
+     */
+    private void onConnectComplete(boolean reconnect) {
+        isConnected = true;
+        executor.execute(this::subscribeCommands);
+        if (reconnect) {
+            Logger.i("MQTT reconnected automatically");
+            urgentExecutor.execute(this::drainUrgent);
+            synchronized (pending) {
+                scheduleDrain();
+            }
+        }
+    }
+    
+    /* topic 为 null 时取消（已有的订阅在下次断线前仍有效，收到的消息直接丢弃） */
+    public void setCommandListener(String topic, CommandListener listener) {
+        commandTopic = topic;
+        commandListener = listener;
+        if (topic != null && isConnected()) {
+            executor.execute(this::subscribeCommands);
+        }
+    }
+    
+    private void subscribeCommands() {
+        String topic = commandTopic;
+        if (topic == null || !isConnected()) {
+            return;
+        }
+        try {
+            if (mqtt5Client != null && mqtt5Client.isConnected()) {
+                mqtt5Client.subscribe(topic, 1);
+            } else {
+                mqttClient.subscribe(topic, 1);
+            }
+            Logger.i("Subscribed to command topic " + topic);
+        } catch (Exception e) {
+            Logger.e("MQTT subscribe to " + topic + " failed", e);
+        }
+    }
+    
+    /* 在 Paho 的回调线程上，listener 不能在这里做阻塞的 MQTT 操作 */
+    private void onMessageArrived(String topic, byte[] payload, boolean retained) {
+        CommandListener listener = commandListener;
+        if (listener == null || !topic.equals(commandTopic)) {
+            return;
+        }
+        /* 保留消息每次重连都会重新投递，命令只执行实时发来的 */
+        if (retained) {
+            Logger.w("Ignoring retained command on " + topic);
+            return;
+        }
+        listener.onCommand(new String(payload, StandardCharsets.UTF_8));
+    }
+    
+    private void onConnectionLost(Throwable cause) {
+        isConnected = false;
+        Logger.w("MQTT connection lost" + (cause == null ? "" : ": " + cause.getMessage()));
+    }
+    
+    private void enqueuePending(String topic, byte[] payload, boolean retained) {
+        synchronized (pending) {
+            if (pending.size() >= MAX_PENDING) {
+                pending.poll();
+                if (droppedMessages.incrementAndGet() % 100 == 1) {
+                    Logger.w("MQTT queue full (" + MAX_PENDING + "), dropped " + droppedMessages.get() + " oldest messages so far");
+                }
+            }
+            pending.add(new PendingMessage(topic, payload, retained));
+        }
+    }
+    
+    /* 调用方持有 pending 的锁；已经排了一次就不再重复排 */
+    private void scheduleDrain() {
+        if (!drainScheduled) {
+            drainScheduled = true;
+            executor.execute(this::drainPending);
+        }
+    }
+    
+    /*
+     * 只在 MQTT 线程执行。队首消息发成功之后才出队：发送期间主线程看到队列非空，
+     * 新消息只会排在后面，不会插到正在补发的旧消息前面；失败时队首留在队列里等重连
+     */
+    private void drainPending() {
+        synchronized (pending) {
+            drainScheduled = false;
+        }
+        int sent = 0;
+        while (isConnected()) {
+            PendingMessage m;
+            synchronized (pending) {
+                m = pending.peek();
+            }
+            if (m == null) break;
+            if (!send(m)) break;
+            synchronized (pending) {
+                /* 发送期间队列满了可能已被挤掉 */
+                if (pending.peek() == m) pending.poll();
+            }
+            sent++;
+        }
+        if (sent > 1) {
+            Logger.d("Sent " + sent + " queued messages");
+        }
+    }
+    
+    /*
+     * 通常在 urgentExecutor 上执行（disconnect 时也在 MQTT 线程上执行一次，由 urgent 的锁保证不会重复发送）。
+     * 与 drainPending 相同：发成功才出队，失败留在队首等重连
+     */
+    private void drainUrgent() {
+        synchronized (urgent) {
+            while (isConnected()) {
+                PendingMessage m;
+                synchronized (pending) {
+                    m = urgent.peek();
+                }
+                if (m == null) break;
+                if (!send(m)) break;
+                synchronized (pending) {
+                    if (urgent.peek() == m) urgent.poll();
+                }
+            }
+        }
+    }
+    
+    /* 已连接时立即在 MQTT 线程上补发待发队列，否则发起连接（连上后自动补发） */
+    public void flushPending() {
+        synchronized (pending) {
+            if (isConnected()) {
+                scheduleDrain();
+                return;
+            }
+        }
+        connectAsync();
+    }
+    
+    /*
+     * 在 MQTT 线程上把当前队列发完（或发送失败）之后执行 done。
+     * 单线程 executor 按顺序执行，所以 done 一定排在此前所有 publish 的发送之后
+     */
+    public void runWhenSent(Runnable done) {
+        executor.execute(() -> {
+            drainPending();
+            done.run();
+        });
+    }
+    
+    /* 供 ServiceStateStore 持久化：优先消息在前，与连上后的发送顺序一致 */
+    List<PendingMessage> snapshotPending() {
+        synchronized (pending) {
+            List<PendingMessage> copy = new ArrayList<>(urgent.size() + pending.size());
+            copy.addAll(urgent);
+            copy.addAll(pending);
+            return copy;
+        }
+    }
+    
+    /* 重启后恢复上次没发出的消息，排在本次启动后已入队的消息前面 */
+    void restorePending(List<PendingMessage> messages) {
+        if (messages.isEmpty()) return;
+        synchronized (pending) {
+            /* 放不下时与 enqueuePending 一样丢最旧的 */
+            int keep = Math.min(messages.size(), Math.max(0, MAX_PENDING - pending.size()));
+            for (int i = messages.size() - 1; i >= messages.size() - keep; i--) {
+                pending.addFirst(messages.get(i));
+            }
+            droppedMessages.addAndGet(messages.size() - keep);
+            if (isConnected()) {
+                scheduleDrain();
+            }
+        }
+    }
+    
+    public int getPendingCount() {
+        synchronized (pending) {
+            return pending.size() + urgent.size();
+        }
+    }
+    
+    /* 先在 MQTT 线程上把已排队的消息发完再断开，之后不再自动重连 */
     public void disconnect() {
+        stopped = true;
+        executor.execute(() -> {
+            drainUrgent();
+            drainPending();
+            disconnectNow();
+        });
+    }
+    
+    private void disconnectNow() {
         try {
             if (mqttClient != null && mqttClient.isConnected()) {
                 mqttClient.disconnect();
                 isConnected = false;
                 Logger.i("MQTT disconnected");
             }
+            if (mqtt5Client != null && mqtt5Client.isConnected()) {
+                mqtt5Client.disconnect();
+                isConnected = false;
+                Logger.i("MQTT 5 disconnected");
+            }
         } catch (Exception e) {
             Logger.e("MQTT disconnection error", e);
         }
     }
     
     public void publish(String topic, String message) {
-        if (!isConnected || mqttClient == null || !mqttClient.isConnected()) {
-            Logger.w("MQTT not connected, attempting to reconnect...");
-            connect();
-            return;
+        publish(topic, message, false);
+    }
+    
+    public void publish(String topic, String message, boolean retained) {
+        Logger.d("Publishing to " + topic + ": " + message);
+        publish(topic, message.getBytes(StandardCharsets.UTF_8), retained);
+    }
+    
+    /* 二进制负载（例如压缩后的批量消息）。只入队，由 MQTT 线程按顺序发送，不阻塞调用方 */
+    public void publish(String topic, byte[] payload, boolean retained) {
+        synchronized (pending) {
+            enqueuePending(topic, payload, retained);
+            if (isConnected()) {
+                scheduleDrain();
+                return;
+            }
         }
-        
+        connectAsync();
+    }
+    
+    /*
+     * 规则动作等需要低延迟的消息：不进普通待发队列，已连接时立即在单独的线程上发送，
+     * 不用等前面积压的消息逐条拿到 PUBACK；优先消息之间仍保持顺序
+     */
+    public void publishUrgent(String topic, String message) {
+        Logger.d("Publishing urgent message to " + topic + ": " + message);
+        synchronized (pending) {
+            if (urgent.size() >= MAX_PENDING) {
+                urgent.poll();
+                droppedMessages.incrementAndGet();
+            }
+            urgent.add(new PendingMessage(topic, message.getBytes(StandardCharsets.UTF_8), false));
+        }
+        if (isConnected()) {
+            urgentExecutor.execute(this::drainUrgent);
+        } else {
+            connectAsync();
+        }
+    }
+    
+    /* 在 MQTT 线程或 urgentExecutor 上调用 */
+    private boolean send(PendingMessage m) {
         try {
-            MqttMessage mqttMessage = new MqttMessage(message.getBytes());
-            mqttMessage.setQos(1);
-            mqttMessage.setRetained(false);
-            
-            mqttClient.publish(topic, mqttMessage);
-            Logger.d("Published to " + topic + ": " + message);
+            if (mqtt5Client != null && mqtt5Client.isConnected()) {
+                org.eclipse.paho.mqttv5.common.MqttMessage mqttMessage =
+                    new org.eclipse.paho.mqttv5.common.MqttMessage(m.payload);
+                mqttMessage.setQos(1);
+                mqttMessage.setRetained(m.retained);
+                mqtt5Client.publish(m.topic, mqttMessage);
+            } else if (mqttClient != null) {
+                MqttMessage mqttMessage = new MqttMessage(m.payload);
+                mqttMessage.setQos(1);
+                mqttMessage.setRetained(m.retained);
+                mqttClient.publish(m.topic, mqttMessage);
+            } else {
+                return false;
+            }
+            publishedMessages.incrementAndGet();
+            totalPublished.incrementAndGet();
+            publishedBytes.addAndGet(m.payload.length);
+            StartupTimer.mark(StartupTimer.FIRST_PUBLISH);
+            return true;
             
         } catch (Exception e) {
             Logger.e("MQTT publish failed", e);
             isConnected = false;
+            if (!stopped) {
+                connectAsync();
+            }
+            return false;
         }
     }
     
+    public long getTotalPublished() {
+        return totalPublished.get();
+    }
+    
     public boolean isConnected() {
-        return isConnected && mqttClient != null && mqttClient.isConnected();
+        if (!isConnected) return false;
+        return (mqttClient != null && mqttClient.isConnected())
+            || (mqtt5Client != null && mqtt5Client.isConnected());
     }
 }
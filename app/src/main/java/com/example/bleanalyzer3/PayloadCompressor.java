@@ -0,0 +1,67 @@
+package com.example.bleanalyzer3;
+
+import java.nio.charset.StandardCharsets;
+import java.util.zip.Deflater;
+
+/**
+ * 批量消息压缩：zlib（deflate）+ 预置字典。
+ *
+ * 传感器 JSON 里大部分字节是重复的键名，单条批量消息又不够长，普通 deflate 学不到这些重复，
+ * 所以预置一个由常见键名和 MAC 前缀组成的字典。接收端用 java.util.zip.Inflater 解压，
+ * needsDictionary() 返回 true 时 setDictionary(PayloadCompressor.DICTIONARY) 即可
+ * （zlib 头里带有字典的 Adler-32，可用 getDictionaryId() 校验）。
+ *
+ * Deflater 和输出缓冲都复用，只在 BLEService 主线程调用。
+ */
+public class PayloadCompressor {
+
+    /* deflate 对字典末尾的内容匹配距离最短，出现最频繁的片段放在最后 */
+    public static final byte[] DICTIONARY = (
+        "\"window\":\"count\":\"humidity_min\":\"humidity_max\":\"temperature_min\":\"temperature_max\":"
+        + "{\"ts\":\"readings\":[{\"mac\":\"A4C138\"battery\":\"rssi\":-"
+        + "},{\"mac\":\"A4C138\",\"temperature\":\",\"humidity\":\",\"battery\":,\"rssi\":-"
+    ).getBytes(StandardCharsets.US_ASCII);
+
+    private final Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+    private byte[] buffer = new byte[4096];
+    private long bytesIn = 0;
+    private long bytesOut = 0;
+
+    public byte[] compress(String payload) {
+        byte[] input = payload.getBytes(StandardCharsets.UTF_8);
+        deflater.reset();
+        deflater.setDictionary(DICTIONARY);
+        deflater.setInput(input);
+        deflater.finish();
+
+        int length = 0;
+        while (!deflater.finished()) {
+            if (length == buffer.length) {
+                byte[] bigger = new byte[buffer.length * 2];
+                System.arraycopy(buffer, 0, bigger, 0, length);
+                buffer = bigger;
+            }
+            length += deflater.deflate(buffer, length, buffer.length - length);
+        }
+
+        bytesIn += input.length;
+        bytesOut += length;
+        byte[] out = new byte[length];
+        System.arraycopy(buffer, 0, out, 0, length);
+        return out;
+    }
+
+    public static int getDictionaryId() {
+        java.util.zip.Adler32 adler = new java.util.zip.Adler32();
+        adler.update(DICTIONARY, 0, DICTIONARY.length);
+        return (int) adler.getValue();
+    }
+
+    public long getBytesIn() {
+        return bytesIn;
+    }
+
+    public long getBytesOut() {
+        return bytesOut;
+    }
+}
@@ -0,0 +1,182 @@
+package com.example.bleanalyzer3;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 窗口聚合：按设备、按指标流式累计 min/max/sum/count/last，
+ * 在对齐到墙上时钟的窗口边界统一输出一次，替代逐条上报。
+ *
+ * 窗口由若干个长度为 hop 的 pane 组成：hop == window 时为滚动窗口（tumbling），
+ * hop < window 时为滑动窗口（sliding），每个 hop 边界输出最近 window 内的聚合。
+ * 累计值全部存放在预分配的基本类型数组里，收包路径不分配对象。
+ * 与 DeviceTracker 一样，只在 BLEService 主线程调用。
+ */
+public class ReadingAggregator {
+
+    public static final int TEMPERATURE = 0;
+    public static final int HUMIDITY = 1;
+    public static final int BATTERY = 2;
+    public static final int RSSI = 3;
+    public static final int METRIC_COUNT = 4;
+
+    public interface Sink {
+        void onWindow(String mac, long windowEnd, Snapshot snapshot);
+    }
+
+    /* 输出给 Sink 的聚合结果，复用同一实例，Sink 不要持有引用 */
+    public static final class Snapshot {
+        public final double[] min = new double[METRIC_COUNT];
+        public final double[] max = new double[METRIC_COUNT];
+        public final double[] mean = new double[METRIC_COUNT];
+        public final double[] last = new double[METRIC_COUNT];
+        public final int[] count = new int[METRIC_COUNT];
+        public int readings;
+    }
+
+    private static final class DeviceWindow {
+        /* 下标 = pane * METRIC_COUNT + metric */
+        final double[] min;
+        final double[] max;
+        final double[] sum;
+        final int[] count;
+        final double[] last = new double[METRIC_COUNT];
+
+        DeviceWindow(int panes) {
+            min = new double[panes * METRIC_COUNT];
+            max = new double[panes * METRIC_COUNT];
+            sum = new double[panes * METRIC_COUNT];
+            count = new int[panes * METRIC_COUNT];
+        }
+    }
+
+    private final Map<String, DeviceWindow> windows = new HashMap<>();
+    private final Snapshot snapshot = new Snapshot();
+    private final Sink sink;
+
+    private long windowMs;
+    private long hopMs;
+    private int panes;
+    private int currentPane = 0;
+
+    public ReadingAggregator(long windowMs, long hopMs, Sink sink) {
+        this.sink = sink;
+        configure(windowMs, hopMs);
+    }
+
+    /* window 是否为 hop 的整数倍（hop <= 0 或 hop >= window 视为滚动窗口） */
+    public static boolean isAligned(long windowMs, long hopMs) {
+        return hopMs <= 0 || hopMs >= windowMs || windowMs % hopMs == 0;
+    }
+
+    /*
+     * 修改窗口参数会丢弃当前未输出的累计值。
+     * 每次输出覆盖 panes * hop 毫秒，window 不是 hop 的整数倍时取最接近的整数倍并打印实际值
+     */
+    public void configure(long windowMs, long hopMs) {
+        if (hopMs <= 0 || hopMs > windowMs) hopMs = windowMs;
+        int panes = (int) Math.max(1, Math.round((double) windowMs / hopMs));
+        if (panes * hopMs != windowMs) {
+            Logger.w("Aggregation window " + windowMs + "ms is not a multiple of hop " + hopMs
+                + "ms, using " + (panes * hopMs) + "ms");
+        }
+        this.windowMs = panes * hopMs;
+        this.hopMs = hopMs;
+        this.panes = panes;
+        this.currentPane = 0;
+        windows.clear();
+    }
+
+    public long getWindowMs() {
+        return windowMs;
+    }
+
+    public long getHopMs() {
+        return hopMs;
+    }
+
+    /* 距离下一个对齐边界的毫秒数（按 epoch 对齐，例如 60 s 窗口对齐到整分钟） */
+    public long millisToNextBoundary(long nowEpochMs) {
+        return hopMs - (nowEpochMs % hopMs);
+    }
+
+    public void add(String mac, float temperature, float humidity, int battery, int rssi) {
+        DeviceWindow w = windows.get(mac);
+        if (w == null) {
+            w = new DeviceWindow(panes);
+            clearPane(w, currentPane);
+            windows.put(mac, w);
+        }
+        int base = currentPane * METRIC_COUNT;
+        accumulate(w, base, TEMPERATURE, temperature);
+        accumulate(w, base, HUMIDITY, humidity);
+        accumulate(w, base, BATTERY, battery);
+        if (rssi != Integer.MIN_VALUE) {
+            accumulate(w, base, RSSI, rssi);
+        }
+    }
+
+    private static void accumulate(DeviceWindow w, int base, int metric, double value) {
+        int i = base + metric;
+        if (w.count[i] == 0) {
+            w.min[i] = value;
+            w.max[i] = value;
+        } else {
+            if (value < w.min[i]) w.min[i] = value;
+            if (value > w.max[i]) w.max[i] = value;
+        }
+        w.sum[i] += value;
+        w.count[i]++;
+        w.last[metric] = value;
+    }
+
+    /* 在每个 hop 边界调用：输出各设备最近一个窗口的聚合，然后滚动到下一个 pane */
+    public void flush(long windowEndEpochMs) {
+        int nextPane = (currentPane + 1) % panes;
+        for (Map.Entry<String, DeviceWindow> e : windows.entrySet()) {
+            DeviceWindow w = e.getValue();
+            if (fillSnapshot(w)) {
+                sink.onWindow(e.getKey(), windowEndEpochMs, snapshot);
+            }
+            clearPane(w, nextPane);
+        }
+        currentPane = nextPane;
+    }
+
+    private boolean fillSnapshot(DeviceWindow w) {
+        snapshot.readings = 0;
+        for (int m = 0; m < METRIC_COUNT; m++) {
+            double min = 0, max = 0, sum = 0;
+            int count = 0;
+            for (int p = 0; p < panes; p++) {
+                int i = p * METRIC_COUNT + m;
+                if (w.count[i] == 0) continue;
+                if (count == 0 || w.min[i] < min) min = w.min[i];
+                if (count == 0 || w.max[i] > max) max = w.max[i];
+                sum += w.sum[i];
+                count += w.count[i];
+            }
+            snapshot.min[m] = min;
+            snapshot.max[m] = max;
+            snapshot.mean[m] = count == 0 ? 0 : sum / count;
+            snapshot.last[m] = w.last[m];
+            snapshot.count[m] = count;
+            if (count > snapshot.readings) snapshot.readings = count;
+        }
+        return snapshot.readings > 0;
+    }
+
+    private static void clearPane(DeviceWindow w, int pane) {
+        int base = pane * METRIC_COUNT;
+        for (int m = 0; m < METRIC_COUNT; m++) {
+            w.min[base + m] = 0;
+            w.max[base + m] = 0;
+            w.sum[base + m] = 0;
+            w.count[base + m] = 0;
+        }
+    }
+
+    public void remove(String mac) {
+        windows.remove(mac);
+    }
+}
@@ -0,0 +1,74 @@
+package com.example.bleanalyzer3;
+
+/**
+ * 批量上报：把多个设备的 state JSON 合并成一条消息，
+ * 攒够 maxSize 条或到达 batch_interval 时输出，减少 PUBLISH 次数和报文头开销。
+ *
+ * 输出格式：{"ts":<epoch 秒>,"readings":[{"mac":"A4C138...", ...state 字段...}, ...]}
+ * 只在 BLEService 主线程调用。
+ */
+public class ReadingBatcher {
+
+    public interface Sink {
+        void onBatch(String payload, int count);
+    }
+
+    private final StringBuilder readings = new StringBuilder(1024);
+    private final Sink sink;
+    private int maxSize;
+    private int count = 0;
+
+    public ReadingBatcher(int maxSize, Sink sink) {
+        this.sink = sink;
+        setMaxSize(maxSize);
+    }
+
+    public void setMaxSize(int maxSize) {
+        this.maxSize = Math.max(1, maxSize);
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    /* stateJson 是单设备的 JSON 对象，在其开头插入 mac 字段后追加 */
+    public void add(String macAddress, String stateJson) {
+        if (count > 0) readings.append(',');
+        readings.append("{\"mac\":\"").append(macAddress.replace(":", "")).append('"');
+        if (stateJson.length() > 2) {
+            readings.append(',').append(stateJson, 1, stateJson.length());
+        } else {
+            readings.append('}');
+        }
+        count++;
+        if (count >= maxSize) {
+            flush();
+        }
+    }
+
+    /* 未发出的读数（逗号分隔的 JSON 对象），用于持久化 */
+    public String getPendingReadings() {
+        return readings.toString();
+    }
+
+    public void restore(String pendingReadings, int pendingCount) {
+        if (pendingCount <= 0 || pendingReadings.isEmpty()) return;
+        if (count > 0) readings.append(',');
+        readings.append(pendingReadings);
+        count += pendingCount;
+    }
+
+    public void flush() {
+        if (count == 0) return;
+        String payload = "{\"ts\":" + (System.currentTimeMillis() / 1000)
+            + ",\"readings\":[" + readings + "]}";
+        int flushed = count;
+        readings.setLength(0);
+        count = 0;
+        sink.onBatch(payload, flushed);
+    }
+}
@@ -0,0 +1,353 @@
+package com.example.bleanalyzer3;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * 本地规则引擎：在网关上直接对每条解码后的读数做阈值判断，不经过 broker / Home Assistant 往返。
+ *
+ * config.ini 中的写法（[rules] 段，键名以 rule. 开头）：
+ *   rule.dehumidify = humidity > 70 && temperature > 18 -> mqtt home/dehumidifier/set ON
+ *   rule.dehumidify.clear = mqtt home/dehumidifier/set OFF
+ *   rule.low_battery = battery < 10 -> notify {mac} 电量低
+ *
+ * 条件支持 temperature / humidity / battery / voltage / rssi 与数字比较（> >= < <= == !=），
+ * mac == / != 设备地址，以及 && || ! 和括号（也可写 and / or / not）。
+ * 动作是边沿触发的：条件由假变真时执行一次，由真变假时执行 .clear 动作（如有）。
+ * 未知的 RSSI（GATT 轮询的设备没有广播 RSSI）与任何数字比较都为假，包括 !=。
+ * 主题和内容里的 {mac} 替换为不带冒号的设备地址。
+ *
+ * 规则在加载时编译成谓词树，evaluate 路径只读基本类型、不分配对象；
+ * 只在 BLEService 主线程调用。
+ */
+public class RuleEngine {
+
+    public static final int TEMPERATURE = 0;
+    public static final int HUMIDITY = 1;
+    public static final int BATTERY = 2;
+    public static final int VOLTAGE = 3;
+    public static final int RSSI = 4;
+    public static final int METRIC_COUNT = 5;
+
+    private static final String[] METRIC_NAMES = {"temperature", "humidity", "battery", "voltage", "rssi"};
+
+    public interface ActionSink {
+        void publish(String topic, String payload);
+        /* 同一规则同一设备的通知应替换上一条，而不是越积越多 */
+        void notify(String ruleName, String mac, String text);
+    }
+
+    /* 谓词树节点 */
+    private static final int NODE_AND = 0;
+    private static final int NODE_OR = 1;
+    private static final int NODE_NOT = 2;
+    private static final int NODE_COMPARE = 3;
+    private static final int NODE_MAC = 4;
+
+    private static final int OP_GT = 0;
+    private static final int OP_GE = 1;
+    private static final int OP_LT = 2;
+    private static final int OP_LE = 3;
+    private static final int OP_EQ = 4;
+    private static final int OP_NE = 5;
+
+    private static final class Node {
+        int type;
+        Node left, right;
+        int metric;
+        int op;
+        double value;
+        String mac;
+
+        boolean eval(String deviceMac, double[] values) {
+            switch (type) {
+                case NODE_AND: return left.eval(deviceMac, values) && right.eval(deviceMac, values);
+                case NODE_OR: return left.eval(deviceMac, values) || right.eval(deviceMac, values);
+                case NODE_NOT: return !left.eval(deviceMac, values);
+                case NODE_MAC: return mac.equalsIgnoreCase(deviceMac) == (op == OP_EQ);
+                default:
+                    double v = values[metric];
+                    switch (op) {
+                        case OP_GT: return v > value;
+                        case OP_GE: return v >= value;
+                        case OP_LT: return v < value;
+                        case OP_LE: return v <= value;
+                        case OP_EQ: return v == value;
+                        /* NaN（未知值）与任何数比较都为假 */
+                        default: return v != value && !Double.isNaN(v);
+                    }
+            }
+        }
+    }
+
+    private static final class Action {
+        final boolean notify;
+        final String topic;
+        final String payload;
+
+        Action(boolean notify, String topic, String payload) {
+            this.notify = notify;
+            this.topic = topic;
+            this.payload = payload;
+        }
+    }
+
+    private static final class Rule {
+        final String name;
+        final Node condition;
+        final Action onTrue;
+        final Action onFalse;
+
+        Rule(String name, Node condition, Action onTrue, Action onFalse) {
+            this.name = name;
+            this.condition = condition;
+            this.onTrue = onTrue;
+            this.onFalse = onFalse;
+        }
+    }
+
+    private final ActionSink sink;
+    private final double[] values = new double[METRIC_COUNT];
+    /* 每个设备每条规则上一次的结果，用于边沿触发 */
+    private final Map<String, boolean[]> lastResults = new HashMap<>();
+    private Rule[] rules = new Rule[0];
+
+    private long evaluations = 0;
+    private long evaluationNanos = 0;
+    private long fired = 0;
+
+    public RuleEngine(ActionSink sink) {
+        this.sink = sink;
+    }
+
+    /* 编译 rule.<name> 形式的配置项；单条规则语法错误只跳过该条 */
+    public void load(Map<String, String> ruleConfig) {
+        List<Rule> compiled = new ArrayList<>();
+        for (Map.Entry<String, String> e : ruleConfig.entrySet()) {
+            String key = e.getKey();
+            if (!key.startsWith("rule.") || key.endsWith(".clear")) continue;
+            String name = key.substring("rule.".length());
+            try {
+                String text = e.getValue();
+                int arrow = text.indexOf("->");
+                if (arrow < 0) throw new IllegalArgumentException("missing '->'");
+                Node condition = new Parser(text.substring(0, arrow)).parse();
+                Action onTrue = parseAction(text.substring(arrow + 2));
+                String clear = ruleConfig.get(key + ".clear");
+                Action onFalse = clear == null ? null : parseAction(clear);
+                compiled.add(new Rule(name, condition, onTrue, onFalse));
+            } catch (Exception ex) {
+                Logger.e("Invalid rule " + key + ": " + ex.getMessage());
+            }
+        }
+        rules = compiled.toArray(new Rule[0]);
+        lastResults.clear();
+        Logger.i("Loaded " + rules.length + " rules");
+    }
+
+    public int getRuleCount() {
+        return rules.length;
+    }
+
+    /* rssi 为 Integer.MIN_VALUE 表示未知 */
+    public void evaluate(String mac, float temperature, float humidity, int battery, float voltage, int rssi) {
+        if (rules.length == 0) return;
+        long start = System.nanoTime();
+
+        values[TEMPERATURE] = temperature;
+        values[HUMIDITY] = humidity;
+        values[BATTERY] = battery;
+        values[VOLTAGE] = voltage;
+        values[RSSI] = rssi == Integer.MIN_VALUE ? Double.NaN : rssi;
+
+        boolean[] last = lastResults.get(mac);
+        if (last == null || last.length != rules.length) {
+            last = new boolean[rules.length];
+            lastResults.put(mac, last);
+        }
+
+        for (int i = 0; i < rules.length; i++) {
+            Rule rule = rules[i];
+            boolean result = rule.condition.eval(mac, values);
+            if (result != last[i]) {
+                last[i] = result;
+                Action action = result ? rule.onTrue : rule.onFalse;
+                if (action != null) {
+                    fire(rule, action, mac);
+                }
+            }
+        }
+
+        evaluations += rules.length;
+        evaluationNanos += System.nanoTime() - start;
+    }
+
+    private void fire(Rule rule, Action action, String mac) {
+        fired++;
+        String shortMac = mac.replace(":", "");
+        Logger.i("Rule " + rule.name + " fired for " + mac);
+        try {
+            if (action.notify) {
+                sink.notify(rule.name, mac, action.payload.replace("{mac}", shortMac));
+            } else {
+                sink.publish(action.topic.replace("{mac}", shortMac), action.payload.replace("{mac}", shortMac));
+            }
+        } catch (Exception e) {
+            Logger.e("Error executing rule " + rule.name, e);
+        }
+    }
+
+    /* 不再跟踪的设备，清掉边沿状态 */
+    public void remove(String mac) {
+        lastResults.remove(mac);
+    }
+
+    public String getStats() {
+        double avg = evaluations == 0 ? 0 : (double) evaluationNanos / evaluations;
+        return String.format(Locale.US, "rules=%d evaluations=%d fired=%d avg=%.0fns/rule",
+            rules.length, evaluations, fired, avg);
+    }
+
+    /* "mqtt <topic> <payload>" 或 "notify <text>" */
+    private static Action parseAction(String text) {
+        text = text.trim();
+        if (text.startsWith("notify")) {
+            return new Action(true, null, text.substring("notify".length()).trim());
+        }
+        if (text.startsWith("mqtt ")) {
+            String rest = text.substring(5).trim();
+            int space = rest.indexOf(' ');
+            if (space < 0) return new Action(false, rest, "");
+            return new Action(false, rest.substring(0, space), rest.substring(space + 1).trim());
+        }
+        throw new IllegalArgumentException("unknown action: " + text);
+    }
+
+    /* 递归下降：expr := term (|| term)* ; term := factor (&& factor)* ; factor := ! factor | ( expr ) | cmp */
+    private static final class Parser {
+        private final String src;
+        private int pos = 0;
+
+        Parser(String src) {
+            this.src = src;
+        }
+
+        Node parse() {
+            Node node = parseOr();
+            skipSpaces();
+            if (pos < src.length()) throw new IllegalArgumentException("unexpected '" + src.substring(pos) + "'");
+            return node;
+        }
+
+        private Node parseOr() {
+            Node node = parseAnd();
+            while (match("||") || matchWord("or")) {
+                node = binary(NODE_OR, node, parseAnd());
+            }
+            return node;
+        }
+
+        private Node parseAnd() {
+            Node node = parseFactor();
+            while (match("&&") || matchWord("and")) {
+                node = binary(NODE_AND, node, parseFactor());
+            }
+            return node;
+        }
+
+        private Node parseFactor() {
+            if (match("!") || matchWord("not")) {
+                Node node = new Node();
+                node.type = NODE_NOT;
+                node.left = parseFactor();
+                return node;
+            }
+            if (match("(")) {
+                Node node = parseOr();
+                if (!match(")")) throw new IllegalArgumentException("missing ')'");
+                return node;
+            }
+            String name = word().toLowerCase(Locale.US);
+            int op = parseOp();
+            Node node = new Node();
+            if (name.equals("mac")) {
+                if (op != OP_EQ && op != OP_NE) throw new IllegalArgumentException("mac only supports == / !=");
+                node.type = NODE_MAC;
+                node.op = op;
+                node.mac = word();
+                return node;
+            }
+            node.type = NODE_COMPARE;
+            node.metric = metricIndex(name);
+            node.op = op;
+            node.value = Double.parseDouble(word());
+            return node;
+        }
+
+        private int parseOp() {
+            if (match(">=")) return OP_GE;
+            if (match("<=")) return OP_LE;
+            if (match("==")) return OP_EQ;
+            if (match("!=")) return OP_NE;
+            if (match(">")) return OP_GT;
+            if (match("<")) return OP_LT;
+            if (match("=")) return OP_EQ;
+            throw new IllegalArgumentException("expected comparison at " + pos);
+        }
+
+        private static Node binary(int type, Node left, Node right) {
+            Node node = new Node();
+            node.type = type;
+            node.left = left;
+            node.right = right;
+            return node;
+        }
+
+        private static int metricIndex(String name) {
+            for (int i = 0; i < METRIC_NAMES.length; i++) {
+                if (METRIC_NAMES[i].equals(name)) return i;
+            }
+            throw new IllegalArgumentException("unknown metric: " + name);
+        }
+
+        /* 标识符、数字或 MAC 地址 */
+        private String word() {
+            skipSpaces();
+            int start = pos;
+            while (pos < src.length()) {
+                char c = src.charAt(pos);
+                if (Character.isLetterOrDigit(c) || c == '.' || c == ':' || c == '-' || c == '_') pos++;
+                else break;
+            }
+            if (start == pos) throw new IllegalArgumentException("expected value at " + pos);
+            return src.substring(start, pos);
+        }
+
+        private boolean match(String token) {
+            skipSpaces();
+            if (src.startsWith(token, pos)) {
+                pos += token.length();
+                return true;
+            }
+            return false;
+        }
+
+        private boolean matchWord(String keyword) {
+            skipSpaces();
+            int end = pos + keyword.length();
+            if (src.regionMatches(true, pos, keyword, 0, keyword.length())
+                    && (end >= src.length() || !Character.isLetterOrDigit(src.charAt(end)))) {
+                pos = end;
+                return true;
+            }
+            return false;
+        }
+
+        private void skipSpaces() {
+            while (pos < src.length() && Character.isWhitespace(src.charAt(pos))) pos++;
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package com.example.bleanalyzer3;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.AtomicFile;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * BLEService 的内存状态快照。
+ *
+ * 服务被系统杀掉后以 START_STICKY 重启时，从这里恢复统计计数和尚未发出的消息
+ * （Doze 期间延后的消息、MQTT 待发队列、未满的批量消息），避免重启造成数据空洞。
+ * 计数很小，放在 SharedPreferences；消息可能有几千条，二进制写进单独的文件（AtomicFile，写一半被杀也不会损坏）。
+ * save() 在调用线程上编码，文件写入在后台线程上按顺序进行。
+ */
+public class ServiceStateStore {
+    private static final String PREFS = "service_state";
+    private static final String OUTBOX_FILE = "outbox.bin";
+    private static final int OUTBOX_VERSION = 1;
+
+    private final SharedPreferences prefs;
+    private final AtomicFile outboxFile;
+    private final ExecutorService writer = Executors.newSingleThreadExecutor();
+
+    public long readings;
+    public long published;
+    public long wakeLockHeldMs;
+    public int wakeLockAcquisitions;
+    public int restarts;
+    /* 延后发送的消息：topics 与 payloads 一一对应 */
+    public final List<String> deferredTopics = new ArrayList<>();
+    public final List<String> deferredPayloads = new ArrayList<>();
+    /* 已交给 MQTTManager 但还没发出的消息 */
+    public final List<MQTTManager.PendingMessage> mqttPending = new ArrayList<>();
+    public String batchReadings = "";
+    public int batchCount;
+
+    public ServiceStateStore(Context context) {
+        this(context.getSharedPreferences(PREFS, Context.MODE_PRIVATE),
+            new AtomicFile(new File(context.getFilesDir(), OUTBOX_FILE)));
+    }
+
+    ServiceStateStore(SharedPreferences prefs, AtomicFile outboxFile) {
+        this.prefs = prefs;
+        this.outboxFile = outboxFile;
+    }
+
+    public void load() {
+        readings = prefs.getLong("readings", 0);
+        published = prefs.getLong("published", 0);
+        wakeLockHeldMs = prefs.getLong("wakelock_ms", 0);
+        wakeLockAcquisitions = prefs.getInt("wakelock_count", 0);
+        restarts = prefs.getInt("restarts", 0);
+
+        try (DataInputStream in = new DataInputStream(outboxFile.openRead())) {
+            readOutbox(in);
+        } catch (FileNotFoundException e) {
+            clearOutbox();
+        } catch (IOException e) {
+            Logger.e("Failed to read saved outbox, discarding it", e);
+            clearOutbox();
+        }
+    }
+
+    public void save() {
+        SharedPreferences.Editor editor = prefs.edit()
+            .putLong("readings", readings)
+            .putLong("published", published)
+            .putLong("wakelock_ms", wakeLockHeldMs)
+            .putInt("wakelock_count", wakeLockAcquisitions)
+            .putInt("restarts", restarts);
+        /* 旧版本把消息存在这里 */
+        if (prefs.contains("deferred")) {
+            editor.remove("deferred").remove("batch_readings").remove("batch_count");
+        }
+        editor.apply();
+
+        byte[] outbox;
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            writeOutbox(new DataOutputStream(bytes));
+            outbox = bytes.toByteArray();
+        } catch (IOException e) {
+            Logger.e("Failed to encode outbox", e);
+            return;
+        }
+        writer.execute(() -> writeFile(outbox));
+    }
+
+    /* 服务退出时调用：等已排队的写入完成 */
+    public void close() {
+        writer.shutdown();
+        try {
+            writer.awaitTermination(2, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void writeFile(byte[] outbox) {
+        FileOutputStream out = null;
+        try {
+            out = outboxFile.startWrite();
+            out.write(outbox);
+            outboxFile.finishWrite(out);
+        } catch (IOException e) {
+            Logger.e("Failed to save outbox", e);
+            if (out != null) outboxFile.failWrite(out);
+        }
+    }
+
+    private void clearOutbox() {
+        deferredTopics.clear();
+        deferredPayloads.clear();
+        mqttPending.clear();
+        batchReadings = "";
+        batchCount = 0;
+    }
+
+    void writeOutbox(DataOutputStream out) throws IOException {
+        out.writeInt(OUTBOX_VERSION);
+        out.writeInt(deferredTopics.size());
+        for (int i = 0; i < deferredTopics.size(); i++) {
+            out.writeUTF(deferredTopics.get(i));
+            writeBytes(out, deferredPayloads.get(i).getBytes(StandardCharsets.UTF_8));
+        }
+        out.writeInt(mqttPending.size());
+        for (MQTTManager.PendingMessage m : mqttPending) {
+            out.writeUTF(m.topic);
+            out.writeBoolean(m.retained);
+            writeBytes(out, m.payload);
+        }
+        out.writeInt(batchCount);
+        writeBytes(out, batchReadings.getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+
+    void readOutbox(DataInputStream in) throws IOException {
+        clearOutbox();
+        if (in.readInt() != OUTBOX_VERSION) {
+            throw new IOException("unknown outbox version");
+        }
+        int deferred = in.readInt();
+        for (int i = 0; i < deferred; i++) {
+            deferredTopics.add(in.readUTF());
+            deferredPayloads.add(new String(readBytes(in), StandardCharsets.UTF_8));
+        }
+        int pending = in.readInt();
+        for (int i = 0; i < pending; i++) {
+            String topic = in.readUTF();
+            boolean retained = in.readBoolean();
+            mqttPending.add(new MQTTManager.PendingMessage(topic, readBytes(in), retained));
+        }
+        batchCount = in.readInt();
+        batchReadings = new String(readBytes(in), StandardCharsets.UTF_8);
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > 16 * 1024 * 1024) {
+            throw new IOException("bad length " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,43 @@
+package com.example.bleanalyzer3;
+
+import android.os.SystemClock;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 启动各阶段耗时记录（相对 BLEService.onCreate 的毫秒数）。
+ *
+ * 用法与 Logger 一样是静态调用，启动流程分散在主线程、启动线程池和 MQTT 线程上，
+ * 各处直接 mark 即可。第一次成功发布时输出完整的阶段表，即 time-to-first-publish。
+ */
+public class StartupTimer {
+    public static final String FIRST_PUBLISH = "first_publish";
+
+    private static long startTime = 0;
+    private static final Map<String, Long> phases = new LinkedHashMap<>();
+
+    public static synchronized void begin() {
+        startTime = SystemClock.elapsedRealtime();
+        phases.clear();
+    }
+
+    /* 每个阶段只记录第一次 */
+    public static synchronized void mark(String phase) {
+        if (startTime == 0 || phases.containsKey(phase)) return;
+        long elapsed = SystemClock.elapsedRealtime() - startTime;
+        phases.put(phase, elapsed);
+        Logger.d("Startup phase " + phase + " at +" + elapsed + " ms");
+        if (FIRST_PUBLISH.equals(phase)) {
+            Logger.i("Startup timeline: " + summary());
+        }
+    }
+
+    public static synchronized String summary() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Long> e : phases.entrySet()) {
+            if (sb.length() > 0) sb.append(", ");
+            sb.append(e.getKey()).append("=+").append(e.getValue()).append("ms");
+        }
+        return sb.toString();
+    }
+}
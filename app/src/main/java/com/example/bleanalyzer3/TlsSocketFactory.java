@@ -0,0 +1,248 @@
+package com.example.bleanalyzer3;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.X509ExtendedTrustManager;
+import javax.net.ssl.X509TrustManager;
+
+/**
+ * ssl:// broker 使用的 SocketFactory。
+ *
+ * 整个进程共用一个 SSLContext：JSSE/Conscrypt 的客户端会话缓存挂在 SSLContext 上，
+ * 按 host:port 复用会话（TLS 1.2 session ID / session ticket，TLS 1.3 PSK），
+ * 重连时走简化握手，省掉证书链传输和一次完整的密钥交换。
+ *
+ * 是否复用了会话不能看 session ID：TLS 1.3 和基于 ticket 的 TLS 1.2 恢复里
+ * session ID 是随机的兼容值或为空。这里改为统计证书校验次数——只有完整握手
+ * 才会收到并校验服务端证书链，复用会话的握手不会调用 TrustManager。
+ * 握手数减去证书校验数即复用次数，供 MQTTManager 打印重连统计。
+ */
+public class TlsSocketFactory extends SSLSocketFactory {
+
+    private final SSLSocketFactory delegate;
+    private final AtomicInteger handshakes = new AtomicInteger();
+    private final AtomicInteger verifications = new AtomicInteger();
+    private int verificationsAtLastHandshake = 0;
+    private volatile boolean lastResumed = false;
+
+    /* caFile 为空时使用系统信任的 CA；否则只信任该文件中的证书（自签名 broker） */
+    public TlsSocketFactory(String caFile, int sessionTimeoutSeconds) throws Exception {
+        SSLContext context = SSLContext.getInstance("TLS");
+        TrustManagerFactory tmf = null;
+        if (caFile != null && !caFile.isEmpty()) {
+            KeyStore keyStore = KeyStore.getInstance(KeyStore.getDefaultType());
+            keyStore.load(null, null);
+            try (InputStream in = new FileInputStream(caFile)) {
+                int i = 0;
+                for (Certificate cert : CertificateFactory.getInstance("X.509").generateCertificates(in)) {
+                    keyStore.setCertificateEntry("ca" + (i++), cert);
+                }
+            }
+            tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+            tmf.init(keyStore);
+        } else {
+            tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+            tmf.init((KeyStore) null);
+        }
+        context.init(null, new TrustManager[]{countingTrustManager(tmf)}, null);
+        context.getClientSessionContext().setSessionTimeout(sessionTimeoutSeconds);
+        delegate = context.getSocketFactory();
+    }
+
+    private Socket track(Socket socket) {
+        if (socket instanceof SSLSocket) {
+            ((SSLSocket) socket).addHandshakeCompletedListener(this::onHandshakeCompleted);
+        }
+        return socket;
+    }
+
+    /* 连接是串行的（同一时刻只有一个 MQTT 连接），两次握手之间没有新的证书校验即为复用 */
+    private synchronized void onHandshakeCompleted(HandshakeCompletedEvent event) {
+        int verified = verifications.get();
+        boolean resumed = verified == verificationsAtLastHandshake;
+        verificationsAtLastHandshake = verified;
+        lastResumed = resumed;
+        handshakes.incrementAndGet();
+        Logger.d("TLS handshake completed: " + event.getSession().getProtocol()
+            + " " + event.getCipherSuite() + (resumed ? " (session resumed)" : " (full handshake)"));
+    }
+
+    public boolean wasLastResumed() {
+        return lastResumed;
+    }
+
+    public int getHandshakeCount() {
+        return handshakes.get();
+    }
+
+    /* 完整握手（服务端证书链校验）次数 */
+    public int getFullHandshakeCount() {
+        return verifications.get();
+    }
+
+    public int getResumptionCount() {
+        return Math.max(0, handshakes.get() - verifications.get());
+    }
+
+    private TrustManager countingTrustManager(TrustManagerFactory tmf) {
+        X509TrustManager trustManager = null;
+        for (TrustManager tm : tmf.getTrustManagers()) {
+            if (tm instanceof X509TrustManager) {
+                trustManager = (X509TrustManager) tm;
+                break;
+            }
+        }
+        if (trustManager == null) {
+            throw new IllegalStateException("No X509TrustManager available");
+        }
+        /* X509ExtendedTrustManager 从 API 24 开始才有；API 23 上平台也只会调用两参数的 checkServerTrusted */
+        try {
+            return new CountingExtendedTrustManager(trustManager);
+        } catch (LinkageError e) {
+            return new CountingTrustManager(trustManager);
+        }
+    }
+
+    private class CountingTrustManager implements X509TrustManager {
+        final X509TrustManager delegate;
+
+        CountingTrustManager(X509TrustManager delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void checkClientTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+            delegate.checkClientTrusted(chain, authType);
+        }
+
+        @Override
+        public void checkServerTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+            verifications.incrementAndGet();
+            delegate.checkServerTrusted(chain, authType);
+        }
+
+        @Override
+        public X509Certificate[] getAcceptedIssuers() {
+            return delegate.getAcceptedIssuers();
+        }
+    }
+
+    /* 保留平台 TrustManager 的主机名校验和 Network Security Config（需要带 socket / engine 的重载） */
+    private class CountingExtendedTrustManager extends X509ExtendedTrustManager {
+        final X509TrustManager delegate;
+
+        CountingExtendedTrustManager(X509TrustManager delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void checkClientTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+            delegate.checkClientTrusted(chain, authType);
+        }
+
+        @Override
+        public void checkServerTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+            verifications.incrementAndGet();
+            delegate.checkServerTrusted(chain, authType);
+        }
+
+        @Override
+        public void checkClientTrusted(X509Certificate[] chain, String authType, Socket socket) throws CertificateException {
+            if (delegate instanceof X509ExtendedTrustManager) {
+                ((X509ExtendedTrustManager) delegate).checkClientTrusted(chain, authType, socket);
+            } else {
+                delegate.checkClientTrusted(chain, authType);
+            }
+        }
+
+        @Override
+        public void checkServerTrusted(X509Certificate[] chain, String authType, Socket socket) throws CertificateException {
+            verifications.incrementAndGet();
+            if (delegate instanceof X509ExtendedTrustManager) {
+                ((X509ExtendedTrustManager) delegate).checkServerTrusted(chain, authType, socket);
+            } else {
+                delegate.checkServerTrusted(chain, authType);
+            }
+        }
+
+        @Override
+        public void checkClientTrusted(X509Certificate[] chain, String authType, SSLEngine engine) throws CertificateException {
+            if (delegate instanceof X509ExtendedTrustManager) {
+                ((X509ExtendedTrustManager) delegate).checkClientTrusted(chain, authType, engine);
+            } else {
+                delegate.checkClientTrusted(chain, authType);
+            }
+        }
+
+        @Override
+        public void checkServerTrusted(X509Certificate[] chain, String authType, SSLEngine engine) throws CertificateException {
+            verifications.incrementAndGet();
+            if (delegate instanceof X509ExtendedTrustManager) {
+                ((X509ExtendedTrustManager) delegate).checkServerTrusted(chain, authType, engine);
+            } else {
+                delegate.checkServerTrusted(chain, authType);
+            }
+        }
+
+        @Override
+        public X509Certificate[] getAcceptedIssuers() {
+            return delegate.getAcceptedIssuers();
+        }
+    }
+
+    @Override
+    public String[] getDefaultCipherSuites() {
+        return delegate.getDefaultCipherSuites();
+    }
+
+    @Override
+    public String[] getSupportedCipherSuites() {
+        return delegate.getSupportedCipherSuites();
+    }
+
+    @Override
+    public Socket createSocket() throws IOException {
+        return track(delegate.createSocket());
+    }
+
+    @Override
+    public Socket createSocket(Socket s, String host, int port, boolean autoClose) throws IOException {
+        return track(delegate.createSocket(s, host, port, autoClose));
+    }
+
+    @Override
+    public Socket createSocket(String host, int port) throws IOException {
+        return track(delegate.createSocket(host, port));
+    }
+
+    @Override
+    public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+        return track(delegate.createSocket(host, port, localHost, localPort));
+    }
+
+    @Override
+    public Socket createSocket(InetAddress host, int port) throws IOException {
+        return track(delegate.createSocket(host, port));
+    }
+
+    @Override
+    public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+        return track(delegate.createSocket(address, port, localAddress, localPort));
+    }
+}
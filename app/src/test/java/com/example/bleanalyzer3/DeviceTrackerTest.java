@@ -0,0 +1,148 @@
+package com.example.bleanalyzer3;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DeviceTrackerTest {
+
+    private static final String MAC = "A4:C1:38:00:00:01";
+    private static final long TICK_MS = 1000;
+
+    private final List<Long> offlineAt = new ArrayList<>();
+    private long now;
+    private DeviceTracker tracker;
+
+    @Before
+    public void setUp() {
+        now = 0;
+        tracker = new DeviceTracker(TICK_MS, 0.3f, 3, 11000, (mac, online) -> {
+            if (!online) offlineAt.add(now);
+        });
+    }
+
+    private void runTicksUntil(long end) {
+        while (now < end) {
+            now += TICK_MS;
+            tracker.tick(now);
+        }
+    }
+
+    /* deadline 落在槽位后半段（0.5 s + 11 s = 11.5 s）时，应在下一个 tick 下线，而不是一整圈之后 */
+    @Test
+    public void deadlineInSecondHalfOfSlotExpiresOnNextTick() {
+        tracker.onPacket(MAC, -70, 500);
+        runTicksUntil(80000);
+        assertEquals(1, offlineAt.size());
+        assertEquals(12000L, (long) offlineAt.get(0));
+        assertFalse(tracker.isOnline(MAC));
+    }
+
+    @Test
+    public void deadlineAtSlotStartExpiresWithinOneTick() {
+        tracker.onPacket(MAC, -70, 0);
+        runTicksUntil(80000);
+        assertEquals(1, offlineAt.size());
+        assertTrue(offlineAt.get(0) >= 11000 && offlineAt.get(0) <= 12000);
+    }
+
+    @Test
+    public void devicesStayOnlineWhilePacketsArrive() {
+        for (int i = 0; i < 100; i++) {
+            tracker.onPacket(MAC, -70, now + 500);
+            runTicksUntil(now + 5000);
+        }
+        assertTrue(offlineAt.isEmpty());
+        assertTrue(tracker.isOnline(MAC));
+        assertEquals(1, tracker.getOnlineCount());
+    }
+
+    /* 超时超过一整圈（64 个 tick）时，槽位要经过多圈才真正到期 */
+    @Test
+    public void timeoutLongerThanWheelExpiresOnTime() {
+        tracker.configure(0.3f, 3, 100000);
+        tracker.onPacket(MAC, -70, 500);
+        runTicksUntil(300000);
+        assertEquals(1, offlineAt.size());
+        assertEquals(101000L, (long) offlineAt.get(0));
+    }
+
+    @Test
+    public void removedDeviceNeverReportsOffline() {
+        tracker.onPacket(MAC, -70, 500);
+        tracker.remove(MAC);
+        runTicksUntil(80000);
+        assertTrue(offlineAt.isEmpty());
+        assertEquals(0, tracker.getOnlineCount());
+    }
+
+    @Test
+    public void rssiIsSmoothedWithEwma() {
+        tracker.onPacket(MAC, -70, 0);
+        assertEquals(-70, tracker.getSmoothedRssi(MAC));
+        /* -70 + 0.3 * (-80 - -70) = -73 */
+        tracker.onPacket(MAC, -80, 2000);
+        assertEquals(-73, tracker.getSmoothedRssi(MAC));
+        /* -73 + 0.3 * (-80 - -73) = -75.1 */
+        tracker.onPacket(MAC, -80, 4000);
+        assertEquals(-75, tracker.getSmoothedRssi(MAC));
+        assertEquals(Integer.MIN_VALUE, tracker.getSmoothedRssi("A4:C1:38:00:00:02"));
+    }
+
+    @Test
+    public void intervalEstimateFollowsArrivals() {
+        tracker.onPacket(MAC, -70, 0);
+        assertEquals(0, tracker.getIntervalMs(MAC));
+        for (long t = 2000; t <= 20000; t += 2000) {
+            tracker.onPacket(MAC, -70, t);
+        }
+        assertEquals(2000, tracker.getIntervalMs(MAC));
+        /* 2000 + 0.2 * (4000 - 2000) */
+        tracker.onPacket(MAC, -70, 24000);
+        assertEquals(2400, tracker.getIntervalMs(MAC));
+        assertEquals(2400, tracker.getMaxIntervalMs());
+    }
+
+    /* 重复上报（< 100 ms）不计入；长时间静默最多按 3 倍当前估计计入 */
+    @Test
+    public void intervalEstimateIgnoresDuplicatesAndClampsGaps() {
+        tracker.onPacket(MAC, -70, 0);
+        tracker.onPacket(MAC, -70, 2000);
+        tracker.onPacket(MAC, -70, 2050);
+        assertEquals(2000, tracker.getIntervalMs(MAC));
+        /* 2000 + 0.2 * (3 * 2000 - 2000) */
+        tracker.onPacket(MAC, -70, 62050);
+        assertEquals(2800, tracker.getIntervalMs(MAC));
+    }
+
+    /* 间隔估计有自己的系数，不随 rssi_smoothing 变化 */
+    @Test
+    public void intervalEstimateIndependentOfRssiSmoothing() {
+        tracker.configure(1f, 3, 11000);
+        tracker.onPacket(MAC, -70, 0);
+        tracker.onPacket(MAC, -70, 2000);
+        tracker.onPacket(MAC, -80, 6000);
+        assertEquals(-80, tracker.getSmoothedRssi(MAC));
+        assertEquals(2400, tracker.getIntervalMs(MAC));
+    }
+
+    /* 超时取 max(最小超时, 间隔估计 × 允许错过的次数) */
+    @Test
+    public void timeoutScalesWithEstimatedInterval() {
+        for (long t = 0; t <= 50000; t += 10000) {
+            tracker.onPacket(MAC, -70, t + 500);
+        }
+        assertEquals(10000, tracker.getIntervalMs(MAC));
+        now = 50000;
+        runTicksUntil(200000);
+        assertEquals(1, offlineAt.size());
+        /* 最后一包 50.5 s + 3 × 10 s = 80.5 s，所在槽位在 81 s 处理 */
+        assertEquals(81000L, (long) offlineAt.get(0));
+        assertEquals(0, tracker.getMaxIntervalMs());
+    }
+}
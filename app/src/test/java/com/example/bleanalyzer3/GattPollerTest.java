@@ -0,0 +1,259 @@
+package com.example.bleanalyzer3;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import org.junit.Before;
+import org.junit.Test;
+
+/* 用假的 GattBackend 驱动调度逻辑：连接上限、最久未读优先、命令队列、通知回退、超时退避 */
+public class GattPollerTest {
+
+    private static final String A = "A4:C1:38:00:00:0A";
+    private static final String B = "A4:C1:38:00:00:0B";
+    private static final String C = "A4:C1:38:00:00:0C";
+
+    /* 23.45 ℃，55 %，3000 mV */
+    private static final byte[] SAMPLE = {0x29, 0x09, 55, (byte) 0xB8, 0x0B};
+
+    private static class FakeBackend implements GattBackend {
+        GattBackend.Callback callback;
+        boolean connectResult = true;
+        boolean notifyResult = true;
+        boolean readResult = true;
+        final List<String> connects = new ArrayList<>();
+        final List<Long> connectTimes = new ArrayList<>();
+        final List<String> operations = new ArrayList<>();
+        final Set<String> connected = new HashSet<>();
+        long[] clock;
+
+        @Override
+        public void setCallback(Callback callback) {
+            this.callback = callback;
+        }
+
+        @Override
+        public boolean connect(String mac) {
+            connects.add(mac);
+            connectTimes.add(clock[0]);
+            if (connectResult) connected.add(mac);
+            return connectResult;
+        }
+
+        @Override
+        public void disconnect(String mac) {
+            operations.add("disconnect " + mac);
+            connected.remove(mac);
+        }
+
+        @Override
+        public boolean read(String mac, UUID service, UUID characteristic) {
+            operations.add("read " + mac);
+            return readResult;
+        }
+
+        @Override
+        public boolean enableNotifications(String mac, UUID service, UUID characteristic) {
+            operations.add("notify " + mac);
+            return notifyResult;
+        }
+    }
+
+    private static class Reading {
+        final String mac;
+        final float temperature, humidity, voltage;
+        final int battery;
+
+        Reading(String mac, float temperature, float humidity, int battery, float voltage) {
+            this.mac = mac;
+            this.temperature = temperature;
+            this.humidity = humidity;
+            this.battery = battery;
+            this.voltage = voltage;
+        }
+    }
+
+    private final long[] now = {0};
+    private final List<Reading> readings = new ArrayList<>();
+    private FakeBackend backend;
+
+    @Before
+    public void setUp() {
+        backend = new FakeBackend();
+        backend.clock = now;
+    }
+
+    private GattPoller newPoller(int maxConnections, long pollInterval, long timeout, String... macs) {
+        GattPoller poller = new GattPoller(backend, () -> now[0],
+            (mac, t, h, battery, voltage) -> readings.add(new Reading(mac, t, h, battery, voltage)),
+            maxConnections, pollInterval, timeout);
+        poller.setDevices(Arrays.asList(macs));
+        return poller;
+    }
+
+    /* 连接建立 → 订阅成功 → 收到通知 */
+    private void completeWithNotification(String mac) {
+        backend.callback.onReady(mac);
+        backend.callback.onOperationComplete(mac, GattPoller.LYWSD03_DATA, true, null);
+        backend.callback.onNotification(mac, GattPoller.LYWSD03_DATA, SAMPLE);
+    }
+
+    @Test
+    public void respectsConnectionCap() {
+        GattPoller poller = newPoller(2, 600000, 30000, A, B, C);
+        poller.tick();
+        assertEquals(2, backend.connects.size());
+        assertEquals(2, poller.getActiveCount());
+
+        /* 再 tick 也不会超过上限 */
+        poller.tick();
+        assertEquals(2, backend.connects.size());
+
+        now[0] = 1000;
+        completeWithNotification(backend.connects.get(0));
+        assertEquals(1, poller.getActiveCount());
+        poller.tick();
+        assertEquals(3, backend.connects.size());
+        assertEquals(C, backend.connects.get(2));
+        assertEquals(2, poller.getActiveCount());
+    }
+
+    @Test
+    public void connectsStalestDeviceFirst() {
+        GattPoller poller = newPoller(3, 60000, 30000, A, B, C);
+        poller.tick();
+        /* 读到的顺序与设备列表相反：C 最早，A 最晚 */
+        now[0] = 100;
+        completeWithNotification(C);
+        now[0] = 200;
+        completeWithNotification(B);
+        now[0] = 300;
+        completeWithNotification(A);
+
+        poller.configure(1, 60000, 30000);
+        backend.connects.clear();
+        now[0] = 70000;
+        poller.tick();
+        assertEquals(Collections.singletonList(C), backend.connects);
+        completeWithNotification(C);
+        poller.tick();
+        completeWithNotification(B);
+        poller.tick();
+        assertEquals(Arrays.asList(C, B, A), backend.connects);
+    }
+
+    @Test
+    public void devicesAreNotPolledBeforeTheyAreDue() {
+        GattPoller poller = newPoller(2, 60000, 30000, A);
+        poller.tick();
+        completeWithNotification(A);
+        now[0] = 59999;
+        poller.tick();
+        assertEquals(1, backend.connects.size());
+        now[0] = 60000;
+        poller.tick();
+        assertEquals(2, backend.connects.size());
+    }
+
+    @Test
+    public void decodesNotificationAndDisconnects() {
+        GattPoller poller = newPoller(1, 60000, 30000, A);
+        poller.tick();
+        completeWithNotification(A);
+
+        assertEquals(1, readings.size());
+        Reading r = readings.get(0);
+        assertEquals(A, r.mac);
+        assertEquals(23.45f, r.temperature, 0.001f);
+        assertEquals(55f, r.humidity, 0.001f);
+        assertEquals(90, r.battery);
+        assertEquals(3.0f, r.voltage, 0.001f);
+        assertEquals(Arrays.asList("notify " + A, "disconnect " + A), backend.operations);
+        assertEquals(0, poller.getActiveCount());
+    }
+
+    /* 每个设备同一时刻只有一个操作在途：订阅完成之前不会发出下一条命令 */
+    @Test
+    public void fallsBackToReadWhenSubscribeFails() {
+        GattPoller poller = newPoller(1, 60000, 30000, A);
+        poller.tick();
+        backend.callback.onReady(A);
+        assertEquals(Collections.singletonList("notify " + A), backend.operations);
+        backend.callback.onOperationComplete(A, GattPoller.LYWSD03_DATA, false, null);
+        assertEquals(Arrays.asList("notify " + A, "read " + A), backend.operations);
+        backend.callback.onOperationComplete(A, GattPoller.LYWSD03_DATA, true, SAMPLE);
+
+        assertEquals(1, readings.size());
+        assertEquals(0, poller.getActiveCount());
+    }
+
+    @Test
+    public void fallsBackToReadWhenSubscribeCannotStart() {
+        backend.notifyResult = false;
+        GattPoller poller = newPoller(1, 60000, 30000, A);
+        poller.tick();
+        backend.callback.onReady(A);
+        assertEquals(Arrays.asList("notify " + A, "read " + A), backend.operations);
+        backend.callback.onOperationComplete(A, GattPoller.LYWSD03_DATA, true, SAMPLE);
+        assertEquals(1, readings.size());
+    }
+
+    /* 超时按 15 s、30 s、60 s ... 退避，不超过一个轮询周期 */
+    @Test
+    public void timeoutsBackOffUpToPollInterval() {
+        GattPoller poller = newPoller(1, 60000, 10000, A);
+        for (now[0] = 0; now[0] <= 210000; now[0] += 1000) {
+            poller.tick();
+        }
+        assertEquals(Arrays.asList(0L, 25000L, 65000L, 135000L, 205000L), backend.connectTimes);
+        assertTrue(readings.isEmpty());
+        assertTrue(poller.getStats().contains("failures=4"));
+    }
+
+    @Test
+    public void failedConnectFreesSlot() {
+        backend.connectResult = false;
+        GattPoller poller = newPoller(1, 60000, 30000, A, B);
+        poller.tick();
+        /* A 连不上立即释放名额，同一次 tick 里接着尝试 B */
+        assertEquals(Arrays.asList(A, B), backend.connects);
+        assertEquals(0, poller.getActiveCount());
+    }
+
+    @Test
+    public void disconnectOrShortValueCountsAsFailure() {
+        GattPoller poller = newPoller(2, 60000, 30000, A, B);
+        poller.tick();
+        backend.callback.onDisconnected(A);
+        backend.callback.onReady(B);
+        backend.callback.onOperationComplete(B, GattPoller.LYWSD03_DATA, true, null);
+        backend.callback.onNotification(B, GattPoller.LYWSD03_DATA, new byte[]{1, 2});
+        assertTrue(readings.isEmpty());
+        assertEquals(0, poller.getActiveCount());
+        assertTrue(poller.getStats().contains("failures=2"));
+    }
+
+    @Test
+    public void removingActiveDeviceDisconnectsIt() {
+        GattPoller poller = newPoller(1, 60000, 30000, A, B);
+        poller.tick();
+        assertEquals(1, poller.getActiveCount());
+        poller.setDevices(Collections.singletonList(B));
+        assertTrue(backend.operations.contains("disconnect " + A));
+        assertEquals(0, poller.getActiveCount());
+        assertEquals(1, poller.getDeviceCount());
+
+        /* 已移除设备的迟到回调被忽略 */
+        completeWithNotification(A);
+        assertTrue(readings.isEmpty());
+        poller.tick();
+        assertEquals(Arrays.asList(A, B), backend.connects);
+    }
+}
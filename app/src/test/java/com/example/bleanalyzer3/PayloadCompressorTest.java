@@ -0,0 +1,78 @@
+package com.example.bleanalyzer3;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import org.junit.Test;
+
+public class PayloadCompressorTest {
+
+    /* 与 BLEService.sendToMQTT 相同格式的读数，经 ReadingBatcher 合并 */
+    private static String batch(int readings) {
+        StringBuilder payload = new StringBuilder();
+        ReadingBatcher batcher = new ReadingBatcher(readings, (p, count) -> payload.append(p));
+        for (int i = 0; i < readings; i++) {
+            batcher.add(String.format("A4:C1:38:25:F4:%02X", i),
+                String.format("{\"temperature\":\"%.1f\",\"humidity\":\"%.1f\",\"battery\":%d,\"rssi\":%d}",
+                    21.5 + i * 0.3, 48.0 + i, 90 - i, -60 - i));
+        }
+        return payload.toString();
+    }
+
+    private static int plainDeflateSize(byte[] input) {
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        deflater.setInput(input);
+        deflater.finish();
+        byte[] buf = new byte[input.length + 64];
+        int length = 0;
+        while (!deflater.finished()) {
+            length += deflater.deflate(buf, length, buf.length - length);
+        }
+        deflater.end();
+        return length;
+    }
+
+    private static String inflate(byte[] compressed) throws Exception {
+        Inflater inflater = new Inflater();
+        inflater.setInput(compressed);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[256];
+        while (!inflater.finished()) {
+            int n = inflater.inflate(buf);
+            if (n == 0 && inflater.needsDictionary()) {
+                assertEquals(PayloadCompressor.getDictionaryId(), inflater.getAdler());
+                inflater.setDictionary(PayloadCompressor.DICTIONARY);
+            }
+            out.write(buf, 0, n);
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void roundTripsWithDictionary() throws Exception {
+        PayloadCompressor compressor = new PayloadCompressor();
+        for (int readings : new int[]{1, 2, 10, 200}) {
+            String payload = batch(readings);
+            assertEquals(payload, inflate(compressor.compress(payload)));
+        }
+    }
+
+    /* 字典对小批量最有效；打印各批量大小下 原始 / deflate / deflate+字典 的字节数 */
+    @Test
+    public void dictionaryBeatsPlainDeflate() {
+        PayloadCompressor compressor = new PayloadCompressor();
+        for (int readings : new int[]{1, 2, 5, 20}) {
+            byte[] raw = batch(readings).getBytes(StandardCharsets.UTF_8);
+            int plain = plainDeflateSize(raw);
+            int withDictionary = compressor.compress(batch(readings)).length;
+            System.out.printf("batch of %2d: raw %4d bytes, deflate %4d, deflate+dictionary %4d%n",
+                readings, raw.length, plain, withDictionary);
+            assertTrue(withDictionary < plain);
+            assertTrue(plain < raw.length);
+        }
+    }
+}
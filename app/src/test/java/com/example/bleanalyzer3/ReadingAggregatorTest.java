@@ -0,0 +1,62 @@
+package com.example.bleanalyzer3;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+public class ReadingAggregatorTest {
+
+    private static final String MAC = "A4:C1:38:00:00:01";
+
+    private final List<Integer> readings = new ArrayList<>();
+    private final List<Double> maxTemperature = new ArrayList<>();
+
+    private ReadingAggregator newAggregator(long window, long hop) {
+        return new ReadingAggregator(window, hop, (mac, windowEnd, s) -> {
+            readings.add(s.readings);
+            maxTemperature.add(s.max[ReadingAggregator.TEMPERATURE]);
+        });
+    }
+
+    @Test
+    public void windowNotMultipleOfHopIsRounded() {
+        assertEquals(50000, newAggregator(60000, 25000).getWindowMs());
+        assertEquals(75000, newAggregator(70000, 25000).getWindowMs());
+        assertEquals(60000, newAggregator(60000, 20000).getWindowMs());
+        /* hop 大于窗口时退化为滚动窗口 */
+        ReadingAggregator tumbling = newAggregator(5000, 20000);
+        assertEquals(5000, tumbling.getWindowMs());
+        assertEquals(5000, tumbling.getHopMs());
+    }
+
+    @Test
+    public void isAligned() {
+        assertTrue(ReadingAggregator.isAligned(60000, 0));
+        assertTrue(ReadingAggregator.isAligned(60000, 60000));
+        assertTrue(ReadingAggregator.isAligned(60000, 15000));
+        assertFalse(ReadingAggregator.isAligned(60000, 25000));
+    }
+
+    /* 窗口 = 2 个 hop：每次输出只包含最近两个 hop 内的读数 */
+    @Test
+    public void slidingWindowCoversExactlyWindowMs() {
+        ReadingAggregator aggregator = newAggregator(60000, 25000);
+        aggregator.add(MAC, 30f, 50f, 90, -70);
+        aggregator.flush(25000);
+        aggregator.add(MAC, 20f, 50f, 90, -70);
+        aggregator.flush(50000);
+        aggregator.flush(75000);
+        aggregator.flush(100000);
+
+        assertEquals(3, readings.size());
+        assertEquals(1, (int) readings.get(0));
+        assertEquals(2, (int) readings.get(1));
+        assertEquals(1, (int) readings.get(2));
+        assertEquals(30.0, maxTemperature.get(1), 1e-6);
+        assertEquals(20.0, maxTemperature.get(2), 1e-6);
+    }
+}
@@ -0,0 +1,215 @@
+package com.example.bleanalyzer3;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+
+public class RuleEngineTest {
+
+    private static final String MAC = "A4:C1:38:25:F4:AE";
+    private static final String OTHER = "A4:C1:38:00:00:01";
+
+    private final List<String> actions = new ArrayList<>();
+
+    private final RuleEngine.ActionSink sink = new RuleEngine.ActionSink() {
+        @Override
+        public void publish(String topic, String payload) {
+            actions.add(topic + " " + payload);
+        }
+
+        @Override
+        public void notify(String ruleName, String mac, String text) {
+            actions.add("notify " + ruleName + " " + mac + " " + text);
+        }
+    };
+
+    private RuleEngine load(String... keyValues) {
+        Map<String, String> config = new LinkedHashMap<>();
+        for (int i = 0; i < keyValues.length; i += 2) {
+            config.put(keyValues[i], keyValues[i + 1]);
+        }
+        RuleEngine engine = new RuleEngine(sink);
+        engine.load(config);
+        return engine;
+    }
+
+    /* 单条规则在给定读数下是否为真（新设备上第一次为真就会触发） */
+    private boolean matches(String condition, float temperature, float humidity, int battery, float voltage, int rssi) {
+        actions.clear();
+        RuleEngine engine = load("rule.r", condition + " -> mqtt t on");
+        engine.evaluate(MAC, temperature, humidity, battery, voltage, rssi);
+        return !actions.isEmpty();
+    }
+
+    @Test
+    public void comparisons() {
+        assertTrue(matches("humidity > 70", 20, 71, 90, 3, -60));
+        assertTrue(!matches("humidity > 70", 20, 70, 90, 3, -60));
+        assertTrue(matches("humidity >= 70", 20, 70, 90, 3, -60));
+        assertTrue(matches("battery <= 10", 20, 50, 10, 3, -60));
+        assertTrue(matches("battery == 10", 20, 50, 10, 3, -60));
+        assertTrue(matches("battery = 10", 20, 50, 10, 3, -60));
+        assertTrue(matches("battery != 10", 20, 50, 11, 3, -60));
+        assertTrue(matches("voltage<2.5", 20, 50, 10, 2.4f, -60));
+    }
+
+    @Test
+    public void negativeNumbers() {
+        assertTrue(matches("rssi < -80", 20, 50, 90, 3, -81));
+        assertTrue(!matches("rssi < -80", 20, 50, 90, 3, -79));
+        assertTrue(matches("temperature <= -5.5", -6, 50, 90, 3, -60));
+        assertTrue(matches("temperature>-1", 0, 50, 90, 3, -60));
+    }
+
+    @Test
+    public void booleanOperatorsAndPrecedence() {
+        assertTrue(matches("!(humidity > 70)", 20, 50, 90, 3, -60));
+        assertTrue(!matches("! humidity < 70", 20, 50, 90, 3, -60));
+        assertTrue(matches("not humidity > 70", 20, 50, 90, 3, -60));
+        assertTrue(matches("humidity > 70 or temperature > 30", 31, 50, 90, 3, -60));
+        assertTrue(matches("humidity > 70 || temperature > 30", 20, 71, 90, 3, -60));
+        assertTrue(!matches("humidity > 70 OR temperature > 30", 20, 50, 90, 3, -60));
+        assertTrue(!matches("humidity > 70 and temperature > 30", 20, 71, 90, 3, -60));
+        /* && 优先于 || */
+        assertTrue(matches("battery < 5 || humidity > 70 && temperature > 18", 20, 71, 90, 3, -60));
+        assertTrue(!matches("(battery < 5 || humidity > 70) && temperature > 18", 10, 71, 90, 3, -60));
+        assertTrue(matches("!(battery < 5) && !(rssi < -90)", 20, 50, 90, 3, -60));
+    }
+
+    /* GATT 轮询的设备没有 RSSI（Integer.MIN_VALUE），rssi 条件一律为假 */
+    @Test
+    public void unknownRssiComparesFalse() {
+        int unknown = Integer.MIN_VALUE;
+        assertTrue(!matches("rssi < -80", 20, 50, 90, 3, unknown));
+        assertTrue(!matches("rssi > -80", 20, 50, 90, 3, unknown));
+        assertTrue(!matches("rssi == -80", 20, 50, 90, 3, unknown));
+        assertTrue(!matches("rssi != -80", 20, 50, 90, 3, unknown));
+        assertTrue(!matches("rssi < -80 || humidity > 70", 20, 50, 90, 3, unknown));
+        assertTrue(matches("rssi < -80 || humidity > 70", 20, 71, 90, 3, unknown));
+    }
+
+    @Test
+    public void macMatch() {
+        assertTrue(matches("mac == a4:c1:38:25:f4:ae && humidity > 70", 20, 71, 90, 3, -60));
+        assertTrue(!matches("mac == " + OTHER, 20, 71, 90, 3, -60));
+        assertTrue(matches("mac != " + OTHER, 20, 71, 90, 3, -60));
+    }
+
+    @Test
+    public void invalidRulesAreSkipped() {
+        RuleEngine engine = load(
+            "rule.ok", "humidity > 70 -> mqtt t on",
+            "rule.no_arrow", "humidity > 70",
+            "rule.bad_metric", "pressure > 1000 -> mqtt t on",
+            "rule.unbalanced", "(humidity > 70 -> mqtt t on",
+            "rule.bad_action", "humidity > 70 -> email me",
+            "rule.mac_order", "mac > A4 -> mqtt t on",
+            "rule.trailing", "humidity > 70 70 -> mqtt t on");
+        assertEquals(1, engine.getRuleCount());
+    }
+
+    @Test
+    public void edgeTriggeredWithClearAction() {
+        RuleEngine engine = load(
+            "rule.dehumidify", "humidity > 70 -> mqtt home/{mac}/set ON",
+            "rule.dehumidify.clear", "mqtt home/{mac}/set OFF");
+        engine.evaluate(MAC, 20, 71, 90, 3, -60);
+        engine.evaluate(MAC, 20, 75, 90, 3, -60);
+        engine.evaluate(MAC, 20, 72, 90, 3, -60);
+        assertEquals(1, actions.size());
+        assertEquals("home/A4C13825F4AE/set ON", actions.get(0));
+
+        engine.evaluate(MAC, 20, 60, 90, 3, -60);
+        engine.evaluate(MAC, 20, 50, 90, 3, -60);
+        assertEquals(2, actions.size());
+        assertEquals("home/A4C13825F4AE/set OFF", actions.get(1));
+
+        engine.evaluate(MAC, 20, 80, 90, 3, -60);
+        assertEquals(3, actions.size());
+    }
+
+    @Test
+    public void withoutClearActionFallingEdgeIsSilent() {
+        RuleEngine engine = load("rule.low_battery", "battery < 10 -> notify {mac} 电量低");
+        engine.evaluate(MAC, 20, 50, 5, 3, -60);
+        engine.evaluate(MAC, 20, 50, 50, 3, -60);
+        engine.evaluate(MAC, 20, 50, 5, 3, -60);
+        assertEquals(2, actions.size());
+        assertEquals("notify low_battery " + MAC + " A4C13825F4AE 电量低", actions.get(0));
+    }
+
+    @Test
+    public void edgeStateIsPerDevice() {
+        RuleEngine engine = load("rule.hot", "temperature > 30 -> mqtt alarm {mac}");
+        engine.evaluate(MAC, 31, 50, 90, 3, -60);
+        engine.evaluate(OTHER, 31, 50, 90, 3, -60);
+        engine.evaluate(MAC, 32, 50, 90, 3, -60);
+        assertEquals(2, actions.size());
+        assertEquals("alarm A4C138000001", actions.get(1));
+
+        /* 移除后重新出现的设备从头开始计算边沿 */
+        engine.remove(MAC);
+        engine.evaluate(MAC, 33, 50, 90, 3, -60);
+        assertEquals(3, actions.size());
+    }
+
+    /*
+     * 吞吐基准：2000 条规则 × 100 个设备的读数。
+     * 目标是每秒数千条规则 × 数千条读数（>= 1e6 次规则求值/秒），且稳态下求值路径不分配对象。
+     */
+    @Test
+    public void throughputWithThousandsOfRules() {
+        Map<String, String> config = new LinkedHashMap<>();
+        for (int i = 0; i < 2000; i++) {
+            String condition;
+            switch (i % 4) {
+                case 0: condition = "humidity > " + (60 + i % 40) + " && temperature > 18"; break;
+                case 1: condition = "temperature < -" + (i % 30) + " || battery < " + (i % 10); break;
+                case 2: condition = "!(rssi > -" + (70 + i % 30) + ") and voltage < 2.5"; break;
+                default: condition = "mac == A4:C1:38:00:00:" + String.format("%02X", i % 100) + " && humidity > 90"; break;
+            }
+            config.put("rule.r" + i, condition + " -> mqtt bench/{mac} " + i);
+        }
+        RuleEngine engine = new RuleEngine(sink);
+        engine.load(config);
+        assertEquals(2000, engine.getRuleCount());
+
+        String[] macs = new String[100];
+        for (int d = 0; d < macs.length; d++) {
+            macs[d] = String.format("A4:C1:38:00:00:%02X", d);
+        }
+        /* 每个设备的读数保持不变：预热后不再有边沿，测的是纯求值 */
+        for (int round = 0; round < 20; round++) {
+            for (int d = 0; d < macs.length; d++) {
+                engine.evaluate(macs[d], 20 + d % 10, 50 + d % 45, 80, 3.0f, -60 - d % 40);
+            }
+        }
+        actions.clear();
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        int readings = 5000;
+        long allocatedBefore = threads.getThreadAllocatedBytes(threadId);
+        long start = System.nanoTime();
+        for (int n = 0; n < readings; n++) {
+            int d = n % macs.length;
+            engine.evaluate(macs[d], 20 + d % 10, 50 + d % 45, 80, 3.0f, -60 - d % 40);
+        }
+        long elapsed = System.nanoTime() - start;
+        long allocated = threads.getThreadAllocatedBytes(threadId) - allocatedBefore;
+
+        double evaluationsPerSecond = readings * 2000.0 / (elapsed / 1e9);
+        System.out.printf("RuleEngine: 2000 rules x %d readings in %.1f ms, %.1f M rule evaluations/s, "
+                + "%.0f readings/s, %d bytes allocated%n",
+            readings, elapsed / 1e6, evaluationsPerSecond / 1e6, readings / (elapsed / 1e9), allocated);
+        assertTrue(actions.isEmpty());
+        assertTrue(evaluationsPerSecond >= 1e6);
+        assertTrue("evaluate allocated " + allocated + " bytes", allocated < 64 * 1024);
+    }
+}
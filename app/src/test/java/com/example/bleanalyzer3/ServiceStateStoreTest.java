@@ -0,0 +1,78 @@
+package com.example.bleanalyzer3;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import org.junit.Test;
+
+/* 待发消息快照的编码：延后的消息、MQTT 待发队列（含二进制负载和 retained 标志）、未满的批量读数 */
+public class ServiceStateStoreTest {
+
+    private static byte[] encode(ServiceStateStore store) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        store.writeOutbox(new DataOutputStream(bytes));
+        return bytes.toByteArray();
+    }
+
+    private static ServiceStateStore decode(byte[] bytes) throws IOException {
+        ServiceStateStore store = new ServiceStateStore(null, null);
+        store.readOutbox(new DataInputStream(new ByteArrayInputStream(bytes)));
+        return store;
+    }
+
+    @Test
+    public void outboxRoundTrips() throws IOException {
+        ServiceStateStore store = new ServiceStateStore(null, null);
+        for (int i = 0; i < 5000; i++) {
+            store.deferredTopics.add("home/A4C13825F4AE/state");
+            store.deferredPayloads.add("{\"temperature\":\"21.5\",\"humidity\":\"48.0\",\"battery\":" + (i % 100)
+                + ",\"ts\":1760000000}");
+        }
+        byte[] compressed = {0x78, (byte) 0xF9, 0, (byte) 0xFF, 0x0A};
+        store.mqttPending.add(new MQTTManager.PendingMessage("home/bridge/batch", compressed, false));
+        store.mqttPending.add(new MQTTManager.PendingMessage("home/A4C13825F4AE/availability",
+            "online".getBytes("UTF-8"), true));
+        store.batchReadings = "{\"mac\":\"A4C13825F4AE\",\"humidity\":\"湿度\"}";
+        store.batchCount = 1;
+
+        ServiceStateStore restored = decode(encode(store));
+        assertEquals(store.deferredTopics, restored.deferredTopics);
+        assertEquals(store.deferredPayloads, restored.deferredPayloads);
+        assertEquals(2, restored.mqttPending.size());
+        assertEquals("home/bridge/batch", restored.mqttPending.get(0).topic);
+        assertArrayEquals(compressed, restored.mqttPending.get(0).payload);
+        assertTrue(!restored.mqttPending.get(0).retained);
+        assertTrue(restored.mqttPending.get(1).retained);
+        assertEquals(store.batchReadings, restored.batchReadings);
+        assertEquals(1, restored.batchCount);
+    }
+
+    @Test
+    public void readingReplacesPreviousContents() throws IOException {
+        ServiceStateStore empty = new ServiceStateStore(null, null);
+        ServiceStateStore store = new ServiceStateStore(null, null);
+        store.deferredTopics.add("t");
+        store.deferredPayloads.add("{}");
+        store.readOutbox(new DataInputStream(new ByteArrayInputStream(encode(empty))));
+        assertTrue(store.deferredTopics.isEmpty());
+        assertTrue(store.deferredPayloads.isEmpty());
+        assertTrue(store.mqttPending.isEmpty());
+    }
+
+    @Test(expected = IOException.class)
+    public void truncatedOutboxIsRejected() throws IOException {
+        ServiceStateStore store = new ServiceStateStore(null, null);
+        store.deferredTopics.add("t");
+        store.deferredPayloads.add("{\"battery\":90}");
+        byte[] bytes = encode(store);
+        byte[] truncated = new byte[bytes.length - 3];
+        System.arraycopy(bytes, 0, truncated, 0, truncated.length);
+        decode(truncated);
+    }
+}
@@ -0,0 +1,241 @@
+package com.example.bleanalyzer3;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.KeyStore;
+import java.security.cert.CertificateFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * 重连基准：进程内的 SSLServerSocket 充当 TLS broker，中间串一个计数的 TCP 代理，
+ * 统计每次重连的握手耗时和线上字节数（含 TLS 记录头），并核对复用检测。
+ * 每个连接模拟一次 MQTT 会话：客户端发 CONNECT 大小的数据，读服务端 1 字节应答（CONNACK）后断开，
+ * 读应答同时也收下了 TLS 1.3 在握手之后发来的 NewSessionTicket。
+ */
+public class TlsSocketFactoryTest {
+
+    static {
+        /*
+         * JDK 的服务端默认发无状态 ticket，把整个会话（含证书链）加密塞进 ticket，恢复时客户端要回传约 1 KB；
+         * mosquitto / EMQX 等 broker 用的 OpenSSL 是服务端会话缓存 + 短 ticket。让替身 broker 也使用有状态会话缓存
+         */
+        System.setProperty("jdk.tls.server.enableSessionTicketExtension", "false");
+    }
+
+    private static final int RECONNECTS = 10;
+    private static final byte[] CONNECT = new byte[64];
+
+    private SSLServerSocket broker;
+    private ServerSocket proxy;
+    private Thread brokerThread;
+    private Thread proxyThread;
+    private final AtomicLong upstreamBytes = new AtomicLong();
+    private final AtomicLong downstreamBytes = new AtomicLong();
+    private volatile Thread[] pumps = new Thread[0];
+
+    @Before
+    public void setUp() throws Exception {
+        KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        try (InputStream in = getClass().getClassLoader().getResourceAsStream("broker.p12")) {
+            keyStore.load(in, "changeit".toCharArray());
+        }
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(keyStore, "changeit".toCharArray());
+        SSLContext serverContext = SSLContext.getInstance("TLS");
+        serverContext.init(kmf.getKeyManagers(), null, null);
+
+        broker = (SSLServerSocket) serverContext.getServerSocketFactory()
+            .createServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        brokerThread = new Thread(this::runBroker);
+        brokerThread.setDaemon(true);
+        brokerThread.start();
+
+        proxy = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        proxyThread = new Thread(this::runProxy);
+        proxyThread.setDaemon(true);
+        proxyThread.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        proxy.close();
+        broker.close();
+    }
+
+    private void runBroker() {
+        while (!broker.isClosed()) {
+            try (Socket s = broker.accept()) {
+                InputStream in = s.getInputStream();
+                byte[] buf = new byte[CONNECT.length];
+                int read = 0;
+                while (read < buf.length) {
+                    int n = in.read(buf, read, buf.length - read);
+                    if (n < 0) break;
+                    read += n;
+                }
+                s.getOutputStream().write(0x20);
+                s.getOutputStream().flush();
+                while (in.read(buf) >= 0) {
+                    // 等客户端断开
+                }
+            } catch (Exception ignored) {
+            }
+        }
+    }
+
+    private void runProxy() {
+        while (!proxy.isClosed()) {
+            try {
+                Socket client = proxy.accept();
+                Socket upstream = new Socket(InetAddress.getLoopbackAddress(), broker.getLocalPort());
+                pumps = new Thread[]{
+                    pump(client, upstream, upstreamBytes),
+                    pump(upstream, client, downstreamBytes)
+                };
+            } catch (Exception ignored) {
+            }
+        }
+    }
+
+    private static Thread pump(Socket from, Socket to, AtomicLong counter) {
+        Thread t = new Thread(() -> {
+            byte[] buf = new byte[4096];
+            try {
+                InputStream in = from.getInputStream();
+                OutputStream out = to.getOutputStream();
+                int n;
+                while ((n = in.read(buf)) >= 0) {
+                    counter.addAndGet(n);
+                    out.write(buf, 0, n);
+                    out.flush();
+                }
+            } catch (Exception ignored) {
+            } finally {
+                try {
+                    to.shutdownOutput();
+                } catch (Exception ignored) {
+                }
+            }
+        });
+        t.setDaemon(true);
+        t.start();
+        return t;
+    }
+
+    private static class Result {
+        long handshakeNanos;
+        long bytesUp;
+        long bytesDown;
+        boolean resumed;
+    }
+
+    private Result reconnect(TlsSocketFactory factory, String protocol) throws Exception {
+        upstreamBytes.set(0);
+        downstreamBytes.set(0);
+        Result r = new Result();
+        SSLSocket socket = (SSLSocket) factory.createSocket("localhost", proxy.getLocalPort());
+        try {
+            socket.setEnabledProtocols(new String[]{protocol});
+            long start = System.nanoTime();
+            socket.startHandshake();
+            r.handshakeNanos = System.nanoTime() - start;
+            socket.getOutputStream().write(CONNECT);
+            socket.getOutputStream().flush();
+            assertEquals(0x20, socket.getInputStream().read());
+        } finally {
+            socket.close();
+        }
+        for (Thread t : pumps) {
+            t.join(5000);
+        }
+        r.bytesUp = upstreamBytes.get();
+        r.bytesDown = downstreamBytes.get();
+        return r;
+    }
+
+    private int certificateLength() throws Exception {
+        try (InputStream in = getClass().getClassLoader().getResourceAsStream("broker-ca.pem")) {
+            return CertificateFactory.getInstance("X.509").generateCertificate(in).getEncoded().length;
+        }
+    }
+
+    /* HandshakeCompletedListener 在 JSSE 里是异步通知的 */
+    private static void awaitHandshakes(TlsSocketFactory factory, int expected) throws InterruptedException {
+        for (int i = 0; i < 200 && factory.getHandshakeCount() < expected; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(expected, factory.getHandshakeCount());
+    }
+
+    private void benchmark(String protocol) throws Exception {
+        String caFile = new File(getClass().getClassLoader().getResource("broker-ca.pem").toURI()).getPath();
+        TlsSocketFactory factory = new TlsSocketFactory(caFile, 86400);
+
+        Result[] results = new Result[RECONNECTS];
+        for (int i = 0; i < RECONNECTS; i++) {
+            int fullBefore = factory.getFullHandshakeCount();
+            results[i] = reconnect(factory, protocol);
+            results[i].resumed = factory.getFullHandshakeCount() == fullBefore;
+            awaitHandshakes(factory, i + 1);
+            assertEquals(results[i].resumed, factory.wasLastResumed());
+        }
+
+        Result full = results[0];
+        long resumedNanos = 0, resumedUp = 0, resumedDown = 0;
+        for (int i = 1; i < RECONNECTS; i++) {
+            resumedNanos += results[i].handshakeNanos;
+            resumedUp += results[i].bytesUp;
+            resumedDown += results[i].bytesDown;
+        }
+        int n = RECONNECTS - 1;
+        System.out.printf("%s full handshake:    %6.2f ms, %5d bytes up, %5d bytes down%n",
+            protocol, full.handshakeNanos / 1e6, full.bytesUp, full.bytesDown);
+        System.out.printf("%s resumed (avg of %d): %6.2f ms, %5d bytes up, %5d bytes down%n",
+            protocol, n, resumedNanos / 1e6 / n, resumedUp / n, resumedDown / n);
+
+        assertTrue(!full.resumed);
+        for (int i = 1; i < RECONNECTS; i++) {
+            assertTrue(protocol + " reconnect #" + i + " did not resume the session", results[i].resumed);
+            /* 复用时服务端不再发送证书链（TLS 1.3 复用仍做 ECDHE，省下的主要就是证书） */
+            assertTrue(results[i].bytesDown <= full.bytesDown - certificateLength());
+            assertTrue(results[i].bytesUp + results[i].bytesDown < full.bytesUp + full.bytesDown);
+        }
+        assertEquals(1, factory.getFullHandshakeCount());
+        assertEquals(RECONNECTS - 1, factory.getResumptionCount());
+    }
+
+    @Test
+    public void tls13ReconnectsResumeSession() throws Exception {
+        benchmark("TLSv1.3");
+    }
+
+    @Test
+    public void tls12ReconnectsResumeSession() throws Exception {
+        benchmark("TLSv1.2");
+    }
+
+    @Test
+    public void separateFactoriesDoNotShareSessions() throws Exception {
+        String caFile = new File(getClass().getClassLoader().getResource("broker-ca.pem").toURI()).getPath();
+        TlsSocketFactory first = new TlsSocketFactory(caFile, 86400);
+        TlsSocketFactory second = new TlsSocketFactory(caFile, 86400);
+        reconnect(first, "TLSv1.3");
+        reconnect(second, "TLSv1.3");
+        assertEquals(1, first.getFullHandshakeCount());
+        assertEquals(1, second.getFullHandshakeCount());
+    }
+}